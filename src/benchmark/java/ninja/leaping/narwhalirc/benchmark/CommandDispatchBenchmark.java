@@ -0,0 +1,108 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.util.CommandIndex;
+import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spout.api.command.CommandContext;
+import org.spout.api.command.CommandSource;
+import org.spout.api.command.RootCommand;
+import org.spout.api.command.annotated.AnnotatedCommandRegistrationFactory;
+import org.spout.api.command.annotated.Command;
+import org.spout.api.command.annotated.SimpleInjector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch of a bot command line as the bots do it, matching the line against a {@link CommandIndex} and
+ * running the match through {@link NarwhalIRCUtil#handleCommand}, against the old split-and-lookup in
+ * {@link LegacyDispatch}. The commands do nothing, so only matching, parsing and lookup are measured.
+ * Commands are given no source, as they never use it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandDispatchBenchmark {
+    private static final String PREFIX = ".";
+    private RootCommand root;
+    private CommandIndex<org.spout.api.command.Command> index;
+
+    public static class NoopCommands {
+        public NoopCommands(Object owner) {
+        }
+
+        @Command(aliases = {"players", "ply"}, desc = "Does nothing")
+        public void players(CommandContext args, CommandSource sender) {
+        }
+
+        @Command(aliases = "echo", desc = "Does nothing", min = 1, max = -1)
+        public void echo(CommandContext args, CommandSource sender) {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        root = new RootCommand(null);
+        root.addSubCommands(this, NoopCommands.class, new AnnotatedCommandRegistrationFactory(new SimpleInjector(this)));
+        Map<String, org.spout.api.command.Command> commands = new HashMap<String, org.spout.api.command.Command>();
+        for (org.spout.api.command.Command command : root.getChildren()) {
+            commands.put(command.getName(), command);
+            for (String alias : command.getAliases()) {
+                commands.put(alias, command);
+            }
+        }
+        index = new CommandIndex<org.spout.api.command.Command>(Collections.singletonList(PREFIX), commands, false);
+    }
+
+    @Benchmark
+    public boolean noArguments() {
+        return NarwhalIRCUtil.handleCommand(null, index.match(".players", null), IrcStyleHandler.ID);
+    }
+
+    @Benchmark
+    public boolean withArguments() {
+        return NarwhalIRCUtil.handleCommand(null, index.match(".echo \u000304hello\u000f there narwhal", null), IrcStyleHandler.ID);
+    }
+
+    @Benchmark
+    public boolean noArgumentsLegacy() {
+        return LegacyDispatch.handleCommand(null, "players", IrcStyleHandler.ID, root);
+    }
+
+    @Benchmark
+    public boolean withArgumentsLegacy() {
+        return LegacyDispatch.handleCommand(null, "echo \u000304hello\u000f there narwhal", IrcStyleHandler.ID, root);
+    }
+}
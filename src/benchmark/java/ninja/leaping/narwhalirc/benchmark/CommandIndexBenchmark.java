@@ -0,0 +1,106 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.util.CommandIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the command in lines of IRC chat, with a {@link CommandIndex} and with the prefix check and
+ * substrings it replaced. The mix is mostly ordinary chat, with prefixed and nick-addressed commands.
+ * Argument parsing is left out, as both pay the same for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandIndexBenchmark {
+    private static final int LINES = 1024;
+    private static final String NICK = "NarwhalBot";
+    private static final String PREFIX = ".";
+    private final Map<String, String> commands = new HashMap<String, String>();
+    private CommandIndex<String> index;
+    private String[] lines;
+
+    @Setup
+    public void setUp() {
+        for (String alias : new String[] {"players", "ply", "echo", "exec", "msg", "stats"}) {
+            commands.put(alias, alias);
+        }
+        index = new CommandIndex<String>(Arrays.asList(PREFIX), commands, true);
+        lines = new String[LINES];
+        Random random = new Random(42);
+        for (int i = 0; i < LINES; ++i) {
+            int kind = random.nextInt(100);
+            if (kind < 90) {
+                lines[i] = "anyone know where the nether portal near spawn went " + i;
+            } else if (kind < 95) {
+                lines[i] = ".players";
+            } else if (kind < 98) {
+                lines[i] = ".msg zml2008 are you on tonight " + i;
+            } else {
+                lines[i] = NICK + ": ply";
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void index(Blackhole blackhole) {
+        for (String line : lines) {
+            CommandIndex.Match<String> match = index.match(line, NICK);
+            if (match != null) {
+                blackhole.consume(match.getCommand());
+                blackhole.consume(match.getArguments());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void prefixAndSubstring(Blackhole blackhole) {
+        for (String line : lines) {
+            if (line.startsWith(PREFIX)) {
+                String rawCmd = line.substring(PREFIX.length());
+                int spaceIndex = rawCmd.indexOf(" ");
+                String name = spaceIndex == -1 ? rawCmd : rawCmd.substring(0, spaceIndex);
+                blackhole.consume(commands.get(name));
+                blackhole.consume(spaceIndex == -1 ? "" : rawCmd.substring(spaceIndex + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.util.DedupCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dedup bookkeeping for join and quit notices: marking a message for every channel, and checking it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DedupBenchmark {
+    private static final String MESSAGE = "\u000309zml2008 joined the game";
+    @Param({"1024", "65536"})
+    public int maxEntries;
+    private DedupCache cache;
+    private int sequence;
+
+    @Setup
+    public void setUp() {
+        cache = new DedupCache(5000, maxEntries);
+        for (int i = 0; i < maxEntries; ++i) {
+            cache.add(MESSAGE + i, "#filler");
+        }
+    }
+
+    @Benchmark
+    public boolean addThenHit() {
+        String target = "#chan" + (sequence++ & 63);
+        cache.add(MESSAGE, target);
+        return cache.isDuplicate(MESSAGE, target);
+    }
+
+    @Benchmark
+    public boolean miss() {
+        return cache.isDuplicate("never added", "#narwhal");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean contendedAddThenHit() {
+        String target = "#chan" + (Thread.currentThread().getId() & 63);
+        cache.add(MESSAGE, target);
+        return cache.isDuplicate(MESSAGE, target);
+    }
+}
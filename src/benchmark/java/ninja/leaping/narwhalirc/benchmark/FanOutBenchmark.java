@@ -0,0 +1,144 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.ChannelCommandSource;
+import ninja.leaping.narwhalirc.chatstyle.CompiledTemplate;
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.outbound.LineSplitter;
+import ninja.leaping.narwhalirc.relay.FormatClass;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongepowered.api.event.entity.living.player.PlayerChatEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static ninja.leaping.narwhalirc.ChannelCommandSource.*;
+
+/**
+ * Game to IRC fan-out of one chat message over many channels. {@link #onChat} follows the relay worker:
+ * each distinct format is rendered once, then every channel using it is sent the line,
+ * split to fit the line budget, to a {@link RecordingOutput} in place of PircBotX.
+ * {@link #onChatPerChannel} is the relay as it was before format classes, filling in the template
+ * through {@link LegacyRendering} again for every channel. Compare the two at 100 channels and 1 format
+ * for the saving per format class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FanOutBenchmark {
+    /**
+     * The line budget for a PRIVMSG from a typical hostmask
+     */
+    private static final int LINE_BUDGET = 420;
+    @Param({"1", "10", "100"})
+    public int channels;
+    @Param({"1", "4"})
+    public int formats;
+    private String[] names;
+    private FormatClass[] classes;
+    private ChatTemplate[] templates;
+    private CompiledTemplate[] compiled;
+    private final ChatTemplate eventFormat = new ChatTemplate(new ChatArguments("<", PlayerChatEvent.NAME, "> ", PlayerChatEvent.MESSAGE));
+    private final CompiledTemplate compiledEventFormat = CompiledTemplate.compile(eventFormat, PlayerChatEvent.NAME, PlayerChatEvent.MESSAGE);
+    private final ChatArguments name = new ChatArguments(ChatStyle.BRIGHT_GREEN, "zml2008", ChatStyle.RESET);
+    private final ChatArguments message = new ChatArguments("has anyone seen the narwhal? it was here a minute ago");
+    private final StringBuilder builder = new StringBuilder(512);
+    private final RecordingOutput output = new RecordingOutput();
+
+    @Setup
+    public void setUp() {
+        names = new String[channels];
+        classes = new FormatClass[channels];
+        templates = new ChatTemplate[channels];
+        compiled = new CompiledTemplate[channels];
+        ChatTemplate[] available = {
+                new ChatTemplate(new ChatArguments(EVENT)),
+                new ChatTemplate(new ChatArguments("<", NAME, "> ", MESSAGE)),
+                new ChatTemplate(new ChatArguments("[game] ", EVENT)),
+                new ChatTemplate(new ChatArguments(NAME, ": ", MESSAGE)),
+        };
+        for (int i = 0; i < channels; ++i) {
+            ChatTemplate template = available[i % formats];
+            names[i] = "#channel" + i;
+            classes[i] = new FormatClass(template.toString(), i % 2 == 1);
+            templates[i] = template;
+            compiled[i] = ChannelCommandSource.compileFormat(template);
+        }
+    }
+
+    @Benchmark
+    public RecordingOutput onChat() {
+        // The slot values are rendered once per chat event, as RelayWorker.fillValues does
+        String[] ircValues = new String[EVENT_SLOT + 1], plainValues = new String[EVENT_SLOT + 1];
+        ircValues[NAME_SLOT] = name.asString(IrcStyleHandler.ID);
+        plainValues[NAME_SLOT] = name.getPlainString();
+        ircValues[MESSAGE_SLOT] = message.asString(IrcStyleHandler.ID);
+        plainValues[MESSAGE_SLOT] = message.getPlainString();
+        String[] eventValues = {ircValues[NAME_SLOT], ircValues[MESSAGE_SLOT]};
+        builder.setLength(0);
+        ircValues[EVENT_SLOT] = compiledEventFormat.renderIrc(builder, eventValues).toString();
+        eventValues[0] = plainValues[NAME_SLOT];
+        eventValues[1] = plainValues[MESSAGE_SLOT];
+        builder.setLength(0);
+        plainValues[EVENT_SLOT] = compiledEventFormat.renderPlain(builder, eventValues).toString();
+
+        Map<FormatClass, String> rendered = new HashMap<FormatClass, String>();
+        for (int i = 0; i < channels; ++i) {
+            String line = rendered.get(classes[i]);
+            if (line == null) {
+                builder.setLength(0);
+                if (classes[i].isStripColor()) {
+                    line = compiled[i].renderPlain(builder, plainValues).toString();
+                } else {
+                    line = compiled[i].renderIrc(builder, ircValues).toString();
+                }
+                rendered.put(classes[i], line);
+            }
+            for (String piece : LineSplitter.split(line, LINE_BUDGET)) {
+                output.message(names[i], piece);
+            }
+        }
+        return output;
+    }
+
+    @Benchmark
+    public RecordingOutput onChatPerChannel() {
+        for (int i = 0; i < channels; ++i) {
+            String[] line = LegacyRendering.renderServerToIrc(templates[i], classes[i].isStripColor(), eventFormat, name, message);
+            for (String piece : LineSplitter.split(line[1], LINE_BUDGET)) {
+                output.message(names[i], piece);
+            }
+        }
+        return output;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.ChannelCommandSource;
+import ninja.leaping.narwhalirc.chatstyle.CompiledTemplate;
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static ninja.leaping.narwhalirc.ChannelCommandSource.*;
+
+/**
+ * IRC to game formatting: parsing IRC formatting codes and filling the irc-to-server template,
+ * as {@link ninja.leaping.narwhalirc.NarwhalBotListener#onMessage} does. {@link #onMessageLegacy}
+ * fills the same template through placeholders, as onMessage did before formats were compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IrcToGameBenchmark {
+    @Param({"plain", "colored", "long"})
+    public String message;
+    private String text;
+    private ChatTemplate template;
+    private CompiledTemplate format;
+
+    @Setup
+    public void setUp() {
+        if (message.equals("plain")) {
+            text = "has anyone seen the narwhal? it was here a minute ago";
+        } else if (message.equals("colored")) {
+            text = "\u000304,01red on black\u0003 then \u0002bold\u0002 and \u001fmore\u001f \u000312blue\u000f plain";
+        } else {
+            StringBuilder builder = new StringBuilder(400);
+            for (int i = 0; builder.length() < 400; ++i) {
+                builder.append('\u0003').append(i % 16).append("word").append(i).append(' ');
+            }
+            text = builder.toString();
+        }
+        template = new ChatTemplate(new ChatArguments("<", NAME, "> ", CHANNEL, ": ", MESSAGE));
+        format = compileFormat(template);
+    }
+
+    @Benchmark
+    public ChatArguments extractArguments() {
+        return IrcStyleHandler.INSTANCE.extractArguments(text);
+    }
+
+    @Benchmark
+    public ChatArguments onMessage() {
+        Object[] values = new Object[EVENT_SLOT + 1];
+        values[NAME_SLOT] = "zml";
+        values[CHANNEL_SLOT] = "#narwhal";
+        if (format.hasSlot(MESSAGE_SLOT)) {
+            values[MESSAGE_SLOT] = ChatArguments.fromString(text, IrcStyleHandler.ID);
+        }
+        return new ChatArguments(format.fill(values));
+    }
+
+    @Benchmark
+    public ChatArguments onMessageLegacy() {
+        return LegacyRendering.fillIrcToServer(template, "zml", "#narwhal", text);
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import org.spout.api.command.Command;
+import org.spout.api.command.CommandSource;
+import org.spout.api.command.RootCommand;
+
+/**
+ * Command dispatch the bots no longer use, kept as it was so benchmarks can compare against it
+ */
+public final class LegacyDispatch {
+    private LegacyDispatch() {
+    }
+
+    /**
+     * Split a command line at its first space, parse the arguments and look the command up among the root's
+     * children, as bot commands were run before lines were matched against a command index
+     *
+     * @return whether the command could be found.
+     */
+    public static boolean handleCommand(CommandSource source, String rawArgs, int styleHandlerId, RootCommand root) {
+        String cmdName;
+        ChatArguments arguments;
+        int spaceIndex = rawArgs.indexOf(" ");
+        if (spaceIndex == -1) {
+            cmdName = rawArgs;
+            arguments = new ChatArguments();
+        } else {
+            cmdName = rawArgs.substring(0, spaceIndex);
+            arguments = ChatArguments.fromString(rawArgs.substring(spaceIndex + 1), styleHandlerId);
+        }
+        Command cmd = root.getChild(cmdName);
+        if (cmd != null) {
+            cmd.process(source, cmdName, arguments, false);
+            return true;
+        } else {
+            source.sendMessage(ChatStyle.RED, "Unknown command: ", cmdName);
+            return false;
+        }
+    }
+}
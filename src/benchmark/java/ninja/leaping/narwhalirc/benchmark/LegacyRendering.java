@@ -0,0 +1,69 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.ChannelCommandSource;
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import org.spongepowered.api.event.entity.living.player.PlayerChatEvent;
+
+/**
+ * Rendering paths the relay no longer uses, kept as they were so benchmarks can compare against them
+ */
+public final class LegacyRendering {
+    private LegacyRendering() {
+    }
+
+    /**
+     * Fill in a server-to-irc template for a chat event by copying the template's arguments and
+     * setting each placeholder, as the relay did for every channel before rendering once per format class
+     *
+     * @return The line rendered with IRC formatting, and the line as it should be sent
+     */
+    public static String[] renderServerToIrc(ChatTemplate format, boolean stripColor, ChatTemplate eventFormat,
+                                             ChatArguments name, ChatArguments message) {
+        ChatArguments args = format.getArguments();
+        if (args.hasPlaceholder(ChannelCommandSource.EVENT)) args.setPlaceHolder(ChannelCommandSource.EVENT,
+                eventFormat.getArguments()
+                        .setPlaceHolder(PlayerChatEvent.NAME, name)
+                        .setPlaceHolder(PlayerChatEvent.MESSAGE, message));
+        if (args.hasPlaceholder(ChannelCommandSource.NAME)) args.setPlaceHolder(ChannelCommandSource.NAME, name);
+        if (args.hasPlaceholder(ChannelCommandSource.MESSAGE)) args.setPlaceHolder(ChannelCommandSource.MESSAGE, message);
+        String ircLine = args.asString(IrcStyleHandler.ID);
+        return new String[] {ircLine, stripColor ? args.getPlainString() : ircLine};
+    }
+
+    /**
+     * Fill in an irc-to-server template for a message by copying the template's arguments and
+     * setting each placeholder, as onMessage did before formats were compiled
+     *
+     * @return The message to broadcast
+     */
+    public static ChatArguments fillIrcToServer(ChatTemplate format, String nick, String channel, String message) {
+        ChatArguments args = format.getArguments();
+        if (args.hasPlaceholder(ChannelCommandSource.NAME)) {
+            args.setPlaceHolder(ChannelCommandSource.NAME, new ChatArguments(nick));
+        }
+        if (args.hasPlaceholder(ChannelCommandSource.CHANNEL)) {
+            args.setPlaceHolder(ChannelCommandSource.CHANNEL, new ChatArguments(channel));
+        }
+        if (args.hasPlaceholder(ChannelCommandSource.MESSAGE)) {
+            args.setPlaceHolder(ChannelCommandSource.MESSAGE, ChatArguments.fromString(message, IrcStyleHandler.ID));
+        }
+        return args;
+    }
+}
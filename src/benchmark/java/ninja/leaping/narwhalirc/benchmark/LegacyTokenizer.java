@@ -0,0 +1,91 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import org.pircbotx.Colors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The inbound IRC formatting tokenizer as it was before {@link IrcStyleHandler} parsed messages in
+ * a single pass: an indexOf and substring pass for each formatting code, then a recursive regex pass
+ * for two digit colors. Kept as a baseline for benchmarks and for {@link TokenizerFuzz}.
+ */
+public final class LegacyTokenizer {
+    /**
+     * The old italic code, which was really the bold character followed by '9'
+     */
+    private static final String ITALIC_CODE = "\29";
+    private static final Pattern IRC_COLOR_PATTERN = Pattern.compile("\u0003(\\d\\d)");
+    private final Map<String, ChatStyle> reverseMapping = new HashMap<String, ChatStyle>();
+
+    public LegacyTokenizer() {
+        // The old handler mapped exactly the 16 standard colors, to the styles the current one uses for them
+        for (int i = 0; i < 16; ++i) {
+            ChatStyle style = IrcStyleHandler.INSTANCE.getColorStyle(i);
+            if (style != null) {
+                reverseMapping.put(String.format("\u0003%02d", i), style);
+            }
+        }
+    }
+
+    public ChatArguments extractArguments(String message) {
+        List<Object> items = new ArrayList<Object>();
+        addItems(items,  message);
+        return new ChatArguments(items);
+    }
+
+    private String handleDirectString(List<Object> items, String origStyle, ChatStyle replaceStyle, String message) {
+        int index;
+        while ((index = message.indexOf(origStyle)) != -1) {
+            String section = message.substring(0, index);
+            addItems(items, section);
+            if (index + origStyle.length() == message.length()) {
+                return "";
+            }
+            items.add(replaceStyle);
+            message = message.substring(index + origStyle.length());
+        }
+        return message;
+    }
+
+    private void addItems(List<Object> items, String message) {
+        message = handleDirectString(items, Colors.BOLD, ChatStyle.BOLD, message);
+        message = handleDirectString(items, Colors.NORMAL, ChatStyle.RESET, message);
+        message = handleDirectString(items, Colors.UNDERLINE, ChatStyle.UNDERLINE, message);
+        message = handleDirectString(items, ITALIC_CODE, ChatStyle.ITALIC, message);
+
+        Matcher match = IRC_COLOR_PATTERN.matcher(message);
+        while (match.find()) {
+            ChatStyle reverse = reverseMapping.get(match.group(0));
+            String section = message.substring(0, match.start());
+            addItems(items, section);
+            if (reverse != null) {
+                items.add(reverse);
+            }
+            message = message.substring(match.end());
+        }
+        items.add(message.replace("\03", ""));
+    }
+}
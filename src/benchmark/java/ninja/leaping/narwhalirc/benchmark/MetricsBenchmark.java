@@ -0,0 +1,73 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.metrics.Histogram;
+import ninja.leaping.narwhalirc.metrics.StripedCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of recording metrics on the relay path. Counters and histograms are updated for every
+ * line relayed, so each update should stay under 50ns, including with several threads recording at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetricsBenchmark {
+    private final StripedCounter counter = new StripedCounter();
+    private final Histogram histogram = new Histogram();
+    private long duration = 1;
+
+    @Benchmark
+    public void increment() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedIncrement() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public void record() {
+        // Spread durations over the buckets instead of always hitting one
+        duration = duration * 6364136223846793005L + 1442695040888963407L;
+        histogram.record((duration >>> 40) & 0xffffff);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedRecord() {
+        histogram.record(Thread.currentThread().getId() * 1000);
+    }
+}
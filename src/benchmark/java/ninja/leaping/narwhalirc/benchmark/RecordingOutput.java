@@ -0,0 +1,51 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+/**
+ * A stand-in for PircBotX's output that keeps only the last line sent and a count,
+ * so benchmarks measure our code rather than a socket
+ */
+public class RecordingOutput {
+    private long count;
+    private long bytes;
+    private String lastTarget, lastLine;
+
+    public void message(String target, String line) {
+        ++count;
+        bytes += line.length();
+        lastTarget = target;
+        lastLine = line;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public String getLastTarget() {
+        return lastTarget;
+    }
+
+    public String getLastLine() {
+        return lastLine;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.ChannelCommandSource;
+import ninja.leaping.narwhalirc.chatstyle.CompiledTemplate;
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongepowered.api.event.entity.living.player.PlayerChatEvent;
+
+import java.util.concurrent.TimeUnit;
+
+import static ninja.leaping.narwhalirc.ChannelCommandSource.*;
+
+/**
+ * Rendering one chat event with one server-to-irc format, through a {@link CompiledTemplate} as the
+ * relay worker does and through placeholders as it did before formats were compiled
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ServerToIrcBenchmark {
+    @Param({"event", "name-message"})
+    public String format;
+    @Param({"false", "true"})
+    public boolean stripColor;
+    private final ChatTemplate eventFormat = new ChatTemplate(new ChatArguments("<", PlayerChatEvent.NAME, "> ", PlayerChatEvent.MESSAGE));
+    private final CompiledTemplate compiledEventFormat = CompiledTemplate.compile(eventFormat, PlayerChatEvent.NAME, PlayerChatEvent.MESSAGE);
+    private final ChatArguments name = new ChatArguments(ChatStyle.BRIGHT_GREEN, "zml2008", ChatStyle.RESET);
+    private final ChatArguments message = new ChatArguments("has anyone seen the narwhal? it was here a minute ago");
+    private final StringBuilder builder = new StringBuilder(512);
+    private ChatTemplate template;
+    private CompiledTemplate compiled;
+
+    @Setup
+    public void setUp() {
+        if (format.equals("event")) {
+            template = new ChatTemplate(new ChatArguments(EVENT));
+        } else {
+            template = new ChatTemplate(new ChatArguments(ChatStyle.GRAY, "[game] ", ChatStyle.RESET, NAME, ": ", MESSAGE));
+        }
+        compiled = ChannelCommandSource.compileFormat(template);
+    }
+
+    @Benchmark
+    public String[] compiled() {
+        String[] ircValues = new String[EVENT_SLOT + 1], plainValues = new String[EVENT_SLOT + 1];
+        ircValues[NAME_SLOT] = name.asString(IrcStyleHandler.ID);
+        plainValues[NAME_SLOT] = name.getPlainString();
+        ircValues[MESSAGE_SLOT] = message.asString(IrcStyleHandler.ID);
+        plainValues[MESSAGE_SLOT] = message.getPlainString();
+        String[] eventValues = {ircValues[NAME_SLOT], ircValues[MESSAGE_SLOT]};
+        builder.setLength(0);
+        ircValues[EVENT_SLOT] = compiledEventFormat.renderIrc(builder, eventValues).toString();
+        eventValues[0] = plainValues[NAME_SLOT];
+        eventValues[1] = plainValues[MESSAGE_SLOT];
+        builder.setLength(0);
+        plainValues[EVENT_SLOT] = compiledEventFormat.renderPlain(builder, eventValues).toString();
+
+        builder.setLength(0);
+        String ircLine = compiled.renderIrc(builder, ircValues).toString();
+        String outgoing = ircLine;
+        if (stripColor) {
+            builder.setLength(0);
+            outgoing = compiled.renderPlain(builder, plainValues).toString();
+        }
+        return new String[] {ircLine, outgoing};
+    }
+
+    @Benchmark
+    public String[] legacy() {
+        return LegacyRendering.renderServerToIrc(template, stripColor, eventFormat, name, message);
+    }
+}
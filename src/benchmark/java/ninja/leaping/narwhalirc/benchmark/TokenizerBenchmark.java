@@ -0,0 +1,80 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizing inbound IRC formatting with the single pass {@link IrcStyleHandler} and with the
+ * {@link LegacyTokenizer} it replaced. The worst case is a full 512 byte line where every other
+ * character is a formatting code, which made the old tokenizer copy the rest of the line for each code.
+ * Messages stay within what the old tokenizer could parse without throwing, as described in {@link TokenizerFuzz}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TokenizerBenchmark {
+    private static final int MAX_LINE_LENGTH = 512;
+    @Param({"plain", "colored", "worst"})
+    public String message;
+    private final LegacyTokenizer legacy = new LegacyTokenizer();
+    private String text;
+
+    @Setup
+    public void setUp() {
+        if (message.equals("plain")) {
+            text = "has anyone seen the narwhal? it was here a minute ago";
+        } else if (message.equals("colored")) {
+            text = "\u000304,01red on black\u0003 then \u0002bold\u0002 and \u001fmore\u001f \u000312blue\u000f plain";
+        } else {
+            final String[] codes = {"\u0002", "\u000304", "\u001f", "\u000f"};
+            StringBuilder builder = new StringBuilder(MAX_LINE_LENGTH + 4);
+            for (int i = 0; builder.length() < MAX_LINE_LENGTH; ++i) {
+                builder.append(codes[i % codes.length]).append((char) ('a' + i % 26));
+            }
+            builder.setLength(MAX_LINE_LENGTH);
+            text = builder.toString();
+        }
+    }
+
+    @Benchmark
+    public ChatArguments singlePass() {
+        return IrcStyleHandler.INSTANCE.extractArguments(text);
+    }
+
+    @Benchmark
+    public ChatArguments legacy() {
+        return legacy.extractArguments(text);
+    }
+}
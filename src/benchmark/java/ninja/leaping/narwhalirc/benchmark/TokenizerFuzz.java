@@ -0,0 +1,123 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark;
+
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the single pass tokenizer in {@link IrcStyleHandler} gives the same styled text as the
+ * {@link LegacyTokenizer} it replaced, on random messages.
+ *
+ * <p>Messages are built from the formatting the old tokenizer understood: bold, reset, underline,
+ * two digit colors with no background, and bare color characters. Text never contains digits or
+ * commas, which would make a color code mean something else to the new tokenizer. Italic, reverse,
+ * one digit, background and hex colors are left out, as the old tokenizer got them wrong. Its other
+ * bugs are avoided too: every code is followed by text, since it dropped a code that ended the text
+ * between two others, and there is at most one color between two other codes, since it kept searching
+ * with a matcher over the message it had already cut and threw or lost text.
+ * Both outputs are compared after joining adjacent text, dropping empty text and dropping styles
+ * at the end of the message, which have no visible effect. The old tokenizer emits those freely.
+ *
+ * <p>Run with {@code mvn -P benchmark compile exec:java -Dexec.mainClass=ninja.leaping.narwhalirc.benchmark.TokenizerFuzz
+ * -Dexec.args="100000 42"}, with the number of messages and the random seed.
+ * Exits with status 1 after printing the first message that differs.
+ */
+public class TokenizerFuzz {
+    private static final String TEXT = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ !?.:<>#\u00e9\u2603";
+    private static final String[] CODES = {"\u0002", "\u000f", "\u001f"};
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        final Random random = new Random(seed);
+        final LegacyTokenizer legacy = new LegacyTokenizer();
+        for (int i = 0; i < count; ++i) {
+            String message = randomMessage(random);
+            List<Object> expected = normalize(legacy.extractArguments(message));
+            List<Object> actual = normalize(IrcStyleHandler.INSTANCE.extractArguments(message));
+            if (!expected.equals(actual)) {
+                System.out.println("Tokenizers differ (seed " + seed + ", message " + i + ") on " + escape(message));
+                System.out.println("  legacy:      " + expected);
+                System.out.println("  single pass: " + actual);
+                System.exit(1);
+            }
+        }
+        System.out.println(count + " messages tokenized the same (seed " + seed + ")");
+    }
+
+    private static String randomMessage(Random random) {
+        final int length = random.nextInt(128);
+        StringBuilder message = new StringBuilder(length + 8);
+        boolean colored = false;
+        while (message.length() < length) {
+            int kind = random.nextInt(10);
+            if (kind == 9) {
+                message.append('\u0003');
+            } else if (kind >= 7 && !colored) {
+                int color = random.nextInt(17);
+                message.append('\u0003').append(color == 16 ? "99" : String.format("%02d", color));
+                colored = true;
+            } else if (kind >= 5) {
+                message.append(CODES[random.nextInt(CODES.length)]);
+                colored = false;
+            }
+            message.append(TEXT.charAt(random.nextInt(TEXT.length())));
+        }
+        return message.toString();
+    }
+
+    private static List<Object> normalize(ChatArguments arguments) {
+        List<Object> items = new ArrayList<Object>();
+        StringBuilder text = new StringBuilder();
+        for (Object item : arguments.getArguments()) {
+            if (item instanceof String) {
+                text.append((String) item);
+            } else {
+                if (text.length() > 0) {
+                    items.add(text.toString());
+                    text.setLength(0);
+                }
+                items.add(item);
+            }
+        }
+        if (text.length() > 0) {
+            items.add(text.toString());
+        }
+        while (!items.isEmpty() && !(items.get(items.size() - 1) instanceof String)) {
+            items.remove(items.size() - 1);
+        }
+        return items;
+    }
+
+    private static String escape(String message) {
+        StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < message.length(); ++i) {
+            char c = message.charAt(i);
+            if (c < ' ') {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark.fakeirc;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import ninja.leaping.narwhalirc.NarwhalBot;
+import ninja.leaping.narwhalirc.dispatch.DispatchConfiguration;
+import ninja.leaping.narwhalirc.dispatch.DispatchMode;
+import ninja.leaping.narwhalirc.dispatch.EventDispatcher;
+import ninja.leaping.narwhalirc.metrics.Histogram;
+import org.pircbotx.Configuration;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.MessageEvent;
+import org.pircbotx.hooks.managers.ThreadedListenerManager;
+import org.pircbotx.hooks.types.GenericChannelEvent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Measures relay latency for channel chat while slow commands are running, once for each
+ * {@link DispatchMode}. Events are dispatched the same way NarwhalBotListener dispatches them.
+ *
+ * <p>Run with {@code mvn -P benchmark compile exec:java -Dexec.mainClass=ninja.leaping.narwhalirc.benchmark.fakeirc.DispatchDriver
+ * -Dexec.args="<lines> <inbound lines/s> <slow command ms> <lines between commands>"}</p>
+ */
+public class DispatchDriver {
+    private static final String CHANNEL = "#dispatch";
+    private static final Logger LOGGER = Logger.getLogger(DispatchDriver.class.getName());
+    private static final String COMMAND = ".slow";
+
+    private static volatile EventDispatcher dispatcher;
+    private static volatile Histogram latency;
+    private static volatile CountDownLatch received;
+
+    public static void main(String[] args) throws Exception {
+        final int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final long commandTime = args.length > 2 ? Long.parseLong(args[2]) : 500;
+        final int commandEvery = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+
+        FakeIrcServer server = new FakeIrcServer(0);
+        server.start();
+        Configuration<NarwhalBot> config = new Configuration.Builder<NarwhalBot>()
+                .setName("DispatchBot")
+                .setLogin("Narwhal")
+                .setMessageDelay(0)
+                .setServer("127.0.0.1", server.getPort())
+                .addAutoJoinChannel(CHANNEL)
+                .setListenerManager(new ThreadedListenerManager<NarwhalBot>(MoreExecutors.sameThreadExecutor()))
+                .addListener(new ListenerAdapter<NarwhalBot>() {
+                    @Override
+                    public void onEvent(final Event<NarwhalBot> event) throws Exception {
+                        EventDispatcher dispatcher = DispatchDriver.dispatcher;
+                        if (dispatcher != null && event instanceof GenericChannelEvent) {
+                            dispatcher.execute(((GenericChannelEvent<?>) event).getChannel().getName(), new Runnable() {
+                                @Override
+                                public void run() {
+                                    handle(event);
+                                }
+                            });
+                        } else {
+                            super.onEvent(event);
+                        }
+                    }
+
+                    private void handle(Event<NarwhalBot> event) {
+                        try {
+                            super.onEvent(event);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(MessageEvent<NarwhalBot> event) {
+                        String message = event.getMessage();
+                        if (message.startsWith(COMMAND)) {
+                            dispatcher.executeCommand(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        Thread.sleep(commandTime);
+                                    } catch (InterruptedException ignore) {
+                                    }
+                                }
+                            });
+                            return;
+                        }
+                        int space = message.indexOf(' ');
+                        latency.record(System.nanoTime() - Long.parseLong(space == -1 ? message : message.substring(0, space)));
+                        received.countDown();
+                    }
+                })
+                .buildConfiguration();
+        final NarwhalBot bot = new NarwhalBot(config, false);
+        Thread botThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bot.startBot();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "DispatchBot");
+        botThread.setDaemon(true);
+        botThread.start();
+
+        if (!server.awaitRegistration(10000)) {
+            System.err.println("Bot did not register with the fake server");
+            System.exit(1);
+        }
+        Thread.sleep(500); // Let the join complete
+
+        for (DispatchMode mode : DispatchMode.values()) {
+            DispatchConfiguration dispatchConfig = new DispatchConfiguration();
+            dispatchConfig.mode = mode;
+            EventDispatcher modeDispatcher = new EventDispatcher("driver", dispatchConfig, LOGGER);
+            latency = new Histogram();
+            received = new CountDownLatch(lines);
+            dispatcher = modeDispatcher;
+
+            final long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+            long start = System.nanoTime(), next = start;
+            for (int i = 0; i < lines; ++i) {
+                LockSupport.parkNanos(next - System.nanoTime());
+                if (i % commandEvery == 0) {
+                    server.privmsg("admin", CHANNEL, COMMAND);
+                }
+                server.privmsg("user" + (i % 50), CHANNEL, System.nanoTime() + " line " + i);
+                next += interval;
+            }
+            boolean complete = received.await(60, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+            System.out.println(mode + ": " + (lines - received.getCount()) + "/" + lines + " lines in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms" + (complete ? "" : ", INCOMPLETE"));
+            System.out.println(mode + " relay latency: " + latency);
+            dispatcher = null;
+            modeDispatcher.shutdown();
+            server.drainRecorded();
+        }
+
+        bot.sendIRC().quitServer("Dispatch test complete");
+        server.stop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark.fakeirc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-threaded IRC server for load testing, listening on localhost. It speaks enough of
+ * RFC 1459 and IRCv3 capability negotiation for a bot to register and join channels, records
+ * every line clients send, and can be scripted to deliver PRIVMSG, JOIN, PART, QUIT, KICK and
+ * NICK from simulated users. It keeps no state beyond what those need.
+ */
+public class FakeIrcServer implements Runnable {
+    public static final String SERVER_NAME = "fake.irc";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_LINE = 8192;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Queue<RecordedLine> recorded = new ConcurrentLinkedQueue<RecordedLine>();
+    private final List<Client> clients = new ArrayList<Client>();
+    private final Map<String, Set<Client>> channels = new HashMap<String, Set<Client>>();
+    private final CountDownLatch registered = new CountDownLatch(1);
+    private final String isupport;
+    private volatile boolean running;
+    private Thread thread;
+
+    private class Client {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE);
+        private final Deque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+        private final Set<String> caps = new HashSet<String>();
+        private String nick, user;
+        private boolean registered, negotiating;
+        private SelectionKey key;
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private String getMask() {
+            return nick + "!" + (user == null ? nick : user) + "@127.0.0.1";
+        }
+
+        private void send(String line) {
+            writes.add(UTF_8.encode(line + "\r\n"));
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * @param port The port to listen on, or 0 for any free port
+     * @param isupport The tokens to advertise in RPL_ISUPPORT, such as {@code TARGMAX=PRIVMSG:4}
+     * @throws IOException If the port could not be bound
+     */
+    public FakeIrcServer(int port, String isupport) throws IOException {
+        this.isupport = isupport;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public FakeIrcServer(int port) throws IOException {
+        this(port, "CHANTYPES=# PREFIX=(ov)@+ NETWORK=Fake");
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "FakeIrcServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        Thread thread = this.thread;
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait for the first client to complete registration
+     *
+     * @param timeout Milliseconds to wait
+     * @return Whether a client registered in time
+     */
+    public boolean awaitRegistration(long timeout) throws InterruptedException {
+        return registered.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(100);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        disconnect((Client) key.attachment(), "Connection reset");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Client client : new ArrayList<Client>(clients)) {
+                disconnect(client, "Server shutting down");
+            }
+            try {
+                selector.close();
+                serverChannel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Client client = new Client(channel);
+                client.key = channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+            }
+            return;
+        }
+        Client client = (Client) key.attachment();
+        if (key.isReadable()) {
+            read(client);
+        }
+        if (key.isValid() && key.isWritable()) {
+            ByteBuffer buffer;
+            while ((buffer = client.writes.peek()) != null) {
+                client.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                client.writes.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(Client client) throws IOException {
+        if (client.channel.read(client.readBuffer) == -1) {
+            disconnect(client, "Connection closed");
+            return;
+        }
+        final long now = System.nanoTime();
+        ByteBuffer buffer = client.readBuffer;
+        buffer.flip();
+        int start = buffer.position();
+        for (int i = start; i < buffer.limit(); ++i) {
+            if (buffer.get(i) == '\n') {
+                int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                ByteBuffer lineBytes = buffer.duplicate();
+                lineBytes.position(start).limit(end);
+                CharBuffer line = UTF_8.decode(lineBytes);
+                start = i + 1;
+                if (line.length() > 0) {
+                    String text = line.toString();
+                    recorded.add(new RecordedLine(now, client.nick, text));
+                    process(client, text);
+                    if (!client.channel.isOpen()) {
+                        return;
+                    }
+                }
+            }
+        }
+        buffer.position(start);
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            buffer.clear(); // Line too long, drop it
+        }
+    }
+
+    private static String[] parse(String line) {
+        String trailing = null;
+        int colon = line.indexOf(" :");
+        if (colon != -1) {
+            trailing = line.substring(colon + 2);
+            line = line.substring(0, colon);
+        }
+        String[] middle = line.trim().split(" +");
+        if (trailing == null) {
+            return middle;
+        }
+        String[] args = new String[middle.length + 1];
+        System.arraycopy(middle, 0, args, 0, middle.length);
+        args[middle.length] = trailing;
+        return args;
+    }
+
+    private void process(Client client, String line) {
+        String[] args = parse(line);
+        String command = args[0].toUpperCase();
+        if (command.equals("CAP")) {
+            String sub = args.length > 1 ? args[1].toUpperCase() : "";
+            if (sub.equals("LS")) {
+                client.negotiating = true;
+                client.send(":" + SERVER_NAME + " CAP * LS :multi-prefix away-notify server-time");
+            } else if (sub.equals("REQ") && args.length > 2) {
+                for (String cap : args[2].split(" ")) {
+                    client.caps.add(cap);
+                }
+                client.send(":" + SERVER_NAME + " CAP * ACK :" + args[2]);
+            } else if (sub.equals("END")) {
+                client.negotiating = false;
+                maybeRegister(client);
+            }
+        } else if (command.equals("NICK") && args.length > 1) {
+            if (client.registered) {
+                String oldMask = client.getMask();
+                client.nick = args[1];
+                client.send(":" + oldMask + " NICK :" + client.nick);
+            } else {
+                client.nick = args[1];
+                maybeRegister(client);
+            }
+        } else if (command.equals("USER") && args.length > 1) {
+            client.user = args[1];
+            maybeRegister(client);
+        } else if (command.equals("PING")) {
+            client.send(":" + SERVER_NAME + " PONG " + SERVER_NAME + " :" + (args.length > 1 ? args[args.length - 1] : ""));
+        } else if (command.equals("JOIN") && args.length > 1 && client.registered) {
+            for (String name : args[1].split(",")) {
+                joinClient(client, name);
+            }
+        } else if (command.equals("PART") && args.length > 1) {
+            for (String name : args[1].split(",")) {
+                Set<Client> members = channels.get(name);
+                if (members != null && members.remove(client)) {
+                    client.send(":" + client.getMask() + " PART " + name);
+                }
+            }
+        } else if (command.equals("QUIT")) {
+            disconnect(client, args.length > 1 ? args[1] : "Quit");
+        }
+        // PRIVMSG, NOTICE and anything else are only recorded
+    }
+
+    private void maybeRegister(Client client) {
+        if (client.registered || client.negotiating || client.nick == null || client.user == null) {
+            return;
+        }
+        client.registered = true;
+        String prefix = ":" + SERVER_NAME + " ";
+        client.send(prefix + "001 " + client.nick + " :Welcome to the fake network " + client.getMask());
+        client.send(prefix + "002 " + client.nick + " :Your host is " + SERVER_NAME);
+        client.send(prefix + "003 " + client.nick + " :This server was created just now");
+        client.send(prefix + "004 " + client.nick + " " + SERVER_NAME + " fake-1.0 iow ovntk");
+        client.send(prefix + "005 " + client.nick + " " + isupport + " :are supported by this server");
+        client.send(prefix + "375 " + client.nick + " :- " + SERVER_NAME + " Message of the day -");
+        client.send(prefix + "376 " + client.nick + " :End of /MOTD command.");
+        registered.countDown();
+    }
+
+    private void joinClient(Client client, String name) {
+        Set<Client> members = channels.get(name);
+        if (members == null) {
+            members = new HashSet<Client>();
+            channels.put(name, members);
+        }
+        if (!members.add(client)) {
+            return;
+        }
+        client.send(":" + client.getMask() + " JOIN " + name);
+        StringBuilder names = new StringBuilder();
+        for (Client member : members) {
+            if (names.length() > 0) {
+                names.append(' ');
+            }
+            names.append(member.nick);
+        }
+        client.send(":" + SERVER_NAME + " 353 " + client.nick + " = " + name + " :" + names);
+        client.send(":" + SERVER_NAME + " 366 " + client.nick + " " + name + " :End of /NAMES list.");
+    }
+
+    private void disconnect(Client client, String reason) {
+        if (client == null || !clients.remove(client)) {
+            return;
+        }
+        for (Set<Client> members : channels.values()) {
+            members.remove(client);
+        }
+        try {
+            client.channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Run a task on the server thread
+     */
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Send a raw line to every client in a channel, or every client if channel is null
+     */
+    public void broadcast(final String channel, final String line) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                Iterable<Client> targets = channel == null ? clients : channels.get(channel);
+                if (targets != null) {
+                    for (Client client : targets) {
+                        client.send(line);
+                    }
+                }
+            }
+        });
+    }
+
+    private static String mask(String nick) {
+        return nick + "!" + nick + "@sim.user";
+    }
+
+    public void privmsg(String nick, String channel, String text) {
+        broadcast(channel, ":" + mask(nick) + " PRIVMSG " + channel + " :" + text);
+    }
+
+    public void action(String nick, String channel, String text) {
+        privmsg(nick, channel, "\u0001ACTION " + text + "\u0001");
+    }
+
+    public void join(String nick, String channel) {
+        broadcast(channel, ":" + mask(nick) + " JOIN " + channel);
+    }
+
+    public void part(String nick, String channel, String reason) {
+        broadcast(channel, ":" + mask(nick) + " PART " + channel + " :" + reason);
+    }
+
+    public void quit(String nick, String reason) {
+        broadcast(null, ":" + mask(nick) + " QUIT :" + reason);
+    }
+
+    public void kick(String source, String channel, String target, String reason) {
+        broadcast(channel, ":" + mask(source) + " KICK " + channel + " " + target + " :" + reason);
+    }
+
+    public void nick(String oldNick, String newNick) {
+        broadcast(null, ":" + mask(oldNick) + " NICK :" + newNick);
+    }
+
+    /**
+     * Drain the lines clients have sent so far
+     *
+     * @return The lines, in the order they arrived
+     */
+    public List<RecordedLine> drainRecorded() {
+        List<RecordedLine> lines = new ArrayList<RecordedLine>();
+        RecordedLine line;
+        while ((line = recorded.poll()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark.fakeirc;
+
+import ninja.leaping.narwhalirc.NarwhalBot;
+import ninja.leaping.narwhalirc.metrics.Histogram;
+import ninja.leaping.narwhalirc.metrics.MetricsRegistry;
+import ninja.leaping.narwhalirc.outbound.FloodControlConfiguration;
+import ninja.leaping.narwhalirc.outbound.OutboundPriority;
+import ninja.leaping.narwhalirc.outbound.OutboundScheduler;
+import org.pircbotx.Configuration;
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.MessageEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Drives a bot connected to a {@link FakeIrcServer}: floods it with channel messages at a fixed rate
+ * to measure inbound latency and throughput, then sends through an {@link OutboundScheduler} and
+ * checks the lines the server received against the flood control settings.
+ *
+ * <p>Run with {@code mvn -P benchmark compile exec:java -Dexec.mainClass=ninja.leaping.narwhalirc.benchmark.fakeirc.LoadDriver
+ * -Dexec.args="<lines> <inbound lines/s> <burst> <refill ms>"}</p>
+ */
+public class LoadDriver {
+    private static final String CHANNEL = "#load";
+    private static final Logger LOGGER = Logger.getLogger(LoadDriver.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        final int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int rate = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        FloodControlConfiguration flood = new FloodControlConfiguration();
+        if (args.length > 2) {
+            flood.burst = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            flood.refillInterval = Long.parseLong(args[3]);
+        }
+
+        FakeIrcServer server = new FakeIrcServer(0);
+        server.start();
+        final Histogram latency = new Histogram();
+        final CountDownLatch received = new CountDownLatch(lines);
+        Configuration<NarwhalBot> config = new Configuration.Builder<NarwhalBot>()
+                .setName("LoadBot")
+                .setLogin("Narwhal")
+                .setMessageDelay(0)
+                .setServer("127.0.0.1", server.getPort())
+                .addAutoJoinChannel(CHANNEL)
+                .addListener(new ListenerAdapter<NarwhalBot>() {
+                    @Override
+                    public void onMessage(MessageEvent<NarwhalBot> event) {
+                        String message = event.getMessage();
+                        int space = message.indexOf(' ');
+                        latency.record(System.nanoTime() - Long.parseLong(space == -1 ? message : message.substring(0, space)));
+                        received.countDown();
+                    }
+                })
+                .buildConfiguration();
+        final NarwhalBot bot = new NarwhalBot(config, false);
+        Thread botThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bot.startBot();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "LoadBot");
+        botThread.setDaemon(true);
+        botThread.start();
+
+        if (!server.awaitRegistration(10000)) {
+            System.err.println("Bot did not register with the fake server");
+            System.exit(1);
+        }
+        Thread.sleep(500); // Let the join complete
+        server.drainRecorded();
+
+        // Inbound: server -> bot
+        final long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long start = System.nanoTime(), next = start;
+        for (int i = 0; i < lines; ++i) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            server.privmsg("user" + (i % 50), CHANNEL, System.nanoTime() + " line " + i);
+            next += interval;
+        }
+        boolean complete = received.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Inbound: " + (lines - received.getCount()) + "/" + lines + " lines in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms (" + (long) (lines / (elapsed / 1e9)) + " lines/s)"
+                + (complete ? "" : ", INCOMPLETE"));
+        System.out.println("Inbound latency: " + latency);
+
+        // Outbound: bot -> server through flood control
+        OutboundScheduler outbound = new OutboundScheduler(bot, "fake", LOGGER, new MetricsRegistry());
+        outbound.start(flood);
+        final int outboundLines = Math.min(lines, 200);
+        start = System.nanoTime();
+        for (int i = 0; i < outboundLines; ++i) {
+            outbound.send(OutboundPriority.CHAT, CHANNEL, "outbound line " + i);
+        }
+        List<RecordedLine> sent = new ArrayList<RecordedLine>();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(flood.refillInterval * (outboundLines + 10) + 5000);
+        while (sent.size() < outboundLines && System.nanoTime() < deadline) {
+            for (RecordedLine line : server.drainRecorded()) {
+                if (line.getCommand().equals("PRIVMSG")) {
+                    sent.add(line);
+                }
+            }
+            Thread.sleep(10);
+        }
+        outbound.stop();
+        elapsed = System.nanoTime() - start;
+        System.out.println("Outbound: " + sent.size() + "/" + outboundLines + " lines in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, expected about "
+                + Math.max(0, outboundLines - flood.burst) * flood.refillInterval + " ms");
+        System.out.println("Outbound wait: " + outbound.getWaitTime(OutboundPriority.CHAT));
+        System.out.println("Flood control violations: " + countViolations(sent, flood));
+
+        bot.sendIRC().quitServer("Load test complete");
+        server.stop();
+        System.exit(0);
+    }
+
+    /**
+     * Count lines that arrived sooner than the token bucket allows. After any line, the bucket holds at
+     * most burst - 1 tokens, so the span of lines i - span to i needs span - burst + 1 refills.
+     * A little slack is given for scheduling jitter.
+     */
+    private static int countViolations(List<RecordedLine> sent, FloodControlConfiguration flood) {
+        final long refill = TimeUnit.MILLISECONDS.toNanos(flood.refillInterval);
+        final long slack = TimeUnit.MILLISECONDS.toNanos(5);
+        final int span = Math.max(1, flood.burst * 2);
+        int violations = 0;
+        for (int i = span; i < sent.size(); ++i) {
+            long earliest = sent.get(i - span).getReceivedNanos() + (span - flood.burst + 1) * refill;
+            if (sent.get(i).getReceivedNanos() + slack < earliest) {
+                ++violations;
+            }
+        }
+        return violations;
+    }
+}
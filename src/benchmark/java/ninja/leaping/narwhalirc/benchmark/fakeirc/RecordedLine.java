@@ -0,0 +1,64 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.benchmark.fakeirc;
+
+/**
+ * A line a client sent to a {@link FakeIrcServer}, with when it arrived
+ */
+public final class RecordedLine {
+    private final long receivedNanos;
+    private final String nick;
+    private final String line;
+
+    public RecordedLine(long receivedNanos, String nick, String line) {
+        this.receivedNanos = receivedNanos;
+        this.nick = nick;
+        this.line = line;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the line was read
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * @return The nick of the client that sent the line, or null if it had not registered
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    /**
+     * @return The command, such as PRIVMSG
+     */
+    public String getCommand() {
+        int space = line.indexOf(' ');
+        return (space == -1 ? line : line.substring(0, space)).toUpperCase();
+    }
+
+    @Override
+    public String toString() {
+        return receivedNanos + " " + nick + ": " + line;
+    }
+}
@@ -22,15 +22,20 @@ import org.spout.api.chat.style.ChatStyle;
 import org.spout.api.command.CommandContext;
 import org.spout.api.command.CommandSource;
 import org.spout.api.command.annotated.Command;
+import org.spout.api.command.annotated.CommandPermissions;
 import org.spout.api.exception.CommandException;
 import org.spout.api.entity.Player;
 
-import java.util.Collection;
+import java.util.List;
 
 /**
  * @author zml2008
  */
 public class BasicBotCommands {
+    /**
+     * The most players suggested when a name matches several
+     */
+    private static final int MAX_SUGGESTIONS = 5;
     private final NarwhalIRCPlugin plugin;
 
     public BasicBotCommands(NarwhalIRCPlugin plugin) {
@@ -38,27 +43,21 @@ public class BasicBotCommands {
     }
 
     @Command(aliases = {"players", "ply"},
-            desc = "Return the online players")
+            desc = "Return the online players", usage = "[page]", max = 1)
     public void onlinePlayers(CommandContext args, BotCommandSource sender) throws CommandException {
-        ChatArguments build = new ChatArguments();
-        Player[] onlinePlayers = plugin.getServer().getOnlinePlayers();
-        if (onlinePlayers.length > 0) {
-            for (Player player : onlinePlayers) {
-                if (build.length() == 0) {
-                    build.append("Online players: (")
-                    .append(onlinePlayers.length)
-                    .append("/")
-                    .append(plugin.getServer().getMaxPlayers())
-                    .append("): ");
-                } else {
-                    build.append(", ");
-                }
-                build.append(player.getDisplayName()).append(ChatStyle.RESET);
+        List<ChatArguments> pages = plugin.getRoster().getPages();
+        int page = 1;
+        if (args.length() > 0) {
+            try {
+                page = Integer.parseInt(args.getString(0));
+            } catch (NumberFormatException e) {
+                throw new CommandException("Invalid page number: " + args.getString(0));
             }
-        } else {
-            build.append("No players online.");
         }
-        sender.sendMessage(build);
+        if (page < 1 || page > pages.size()) {
+            throw new CommandException("There " + (pages.size() == 1 ? "is 1 page" : "are " + pages.size() + " pages") + " of players");
+        }
+        sender.sendMessage(pages.get(page - 1));
     }
 
     @Command(aliases = {"echo"},
@@ -79,6 +78,15 @@ public class BasicBotCommands {
         }
     }
 
+    @Command(aliases = "stats", desc = "Show NarwhalIRC's metrics")
+    @CommandPermissions("narwhal.irc.stats")
+    public void stats(CommandContext args, BotCommandSource sender) throws CommandException {
+        sender.sendMessage(sender.getSession().getServer(), ": ", sender.getSession().getState());
+        for (String line : plugin.getMetrics().summarize()) {
+            sender.sendMessage(line);
+        }
+    }
+
     /*@Command(aliases = "broadcastadmin", desc = "Broadcasts a message with narwhalirc.broadcast.admin", min = 1)
     public static void broadcastAdmin(CommandContext args, CommandSource sender, PircBotX bot, Channel source) throws CommandException {
         Spout.getEngine().broadcastMessage(args.getJoinedString(0), Server.BROADCAST_CHANNEL_ADMIN);
@@ -93,14 +101,21 @@ public class BasicBotCommands {
     }
 
     public CommandSource matchSinglePlayer(String name) throws CommandException {
-        Collection<Player> players = plugin.getServer().matchPlayer(name);
+        List<Player> players = plugin.getRoster().getNames().match(name, MAX_SUGGESTIONS);
         if (players.size() == 0) {
             throw new CommandException("No players matched " + name + "!");
         }
 
         if (players.size() > 1) {
-            throw new CommandException("More than one player matched " + name + "!");
+            StringBuilder suggestions = new StringBuilder();
+            for (Player player : players) {
+                if (suggestions.length() > 0) {
+                    suggestions.append(", ");
+                }
+                suggestions.append(player.getName());
+            }
+            throw new CommandException("More than one player matched " + name + ": " + suggestions);
         }
-        return players.iterator().next();
+        return players.get(0);
     }
 }
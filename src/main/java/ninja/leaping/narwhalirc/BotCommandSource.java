@@ -20,6 +20,7 @@ package ninja.leaping.narwhalirc;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.outbound.OutboundPriority;
 import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
 import org.pircbotx.Channel;
 import org.pircbotx.User;
@@ -42,6 +43,7 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class BotCommandSource implements CommandSource {
     private final NarwhalIRCPlugin plugin;
+    private final BotSession session;
     /**
      * The user in IRC that this CommandSender corresponds to.
      */
@@ -54,8 +56,9 @@ public class BotCommandSource implements CommandSource {
 
     private final boolean stripColor;
 
-    public BotCommandSource(NarwhalIRCPlugin plugin, User user, Channel channel, boolean stripColor) {
+    public BotCommandSource(NarwhalIRCPlugin plugin, BotSession session, User user, Channel channel, boolean stripColor) {
         this.plugin = plugin;
+        this.session = session;
         this.user = user;
         this.channel = channel;
         this.stripColor = stripColor;
@@ -80,11 +83,8 @@ public class BotCommandSource implements CommandSource {
 
     @Override
     public boolean sendRawMessage(ChatArguments message) {
-        if (channel == null) {
-            user.getBot().sendMessage(user, message.asString(IrcStyleHandler.ID));
-        } else {
-            user.getBot().sendMessage(channel, message.asString(IrcStyleHandler.ID));
-        }
+        session.getOutbound().send(OutboundPriority.COMMAND, channel == null ? user.getNick() : channel.getName(),
+                message.asString(IrcStyleHandler.ID));
         return true;
     }
 
@@ -125,6 +125,10 @@ public class BotCommandSource implements CommandSource {
 
     }
 
+    public BotSession getSession() {
+        return session;
+    }
+
     public User getUser() {
         return user;
     }
@@ -17,10 +17,18 @@
  */
 package ninja.leaping.narwhalirc;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.objectmapping.Setting;
 import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
 import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.dispatch.DispatchConfiguration;
+import ninja.leaping.narwhalirc.dispatch.EventDispatcher;
+import ninja.leaping.narwhalirc.outbound.FloodControlConfiguration;
+import ninja.leaping.narwhalirc.outbound.ISupport;
+import ninja.leaping.narwhalirc.outbound.OutboundScheduler;
+import ninja.leaping.narwhalirc.util.CommandIndex;
+import ninja.leaping.narwhalirc.util.NameIndex;
 import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
 import org.pircbotx.Channel;
 import org.pircbotx.Configuration;
@@ -28,9 +36,11 @@ import org.pircbotx.IdentServer;
 import org.pircbotx.PircBotX;
 import org.pircbotx.User;
 import org.pircbotx.UtilSSLSocketFactory;
+import org.pircbotx.cap.EnableCapHandler;
 import org.pircbotx.exception.IrcException;
 import org.pircbotx.hooks.ListenerAdapter;
 import org.pircbotx.hooks.events.DisconnectEvent;
+import org.pircbotx.hooks.managers.ThreadedListenerManager;
 
 import javax.net.ssl.SSLHandshakeException;
 import java.io.IOException;
@@ -38,6 +48,12 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
@@ -46,18 +62,58 @@ import java.util.logging.Level;
 public class BotSession {
     private final String server;
     private final NarwhalBot bot;
+    private final OutboundScheduler outbound;
+    private final EventDispatcher dispatcher;
     private final NarwhalIRCPlugin plugin;
-    private final Map<String, Map<String, BotCommandSource>> senders = new HashMap<String, Map<String, BotCommandSource>>();
-    private final Map<String, ChannelCommandSource> channelSenders = new HashMap<String, ChannelCommandSource>();
+    private final SenderRegistry senders = new SenderRegistry();
+    /**
+     * The nicks of users in our channels, rebuilt on the first completion after they change
+     */
+    private volatile NameIndex<User> nicks;
+    private final AtomicInteger usersVersion = new AtomicInteger();
+    private ScheduledFuture<?> senderSweep;
+    private volatile ScheduledFuture<?> startupDeadline;
+    private volatile long connectStartNanos;
+    private volatile boolean registered;
+    private volatile SessionSupervisor supervisor;
+    /**
+     * Configured channels the bot is currently in
+     */
+    private final Set<String> joined = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Consecutive kicks from each channel, used to back off rejoining
+     */
+    private final ConcurrentMap<String, Integer> kicks = new ConcurrentHashMap<String, Integer>();
+    private static final AtomicBoolean IDENT_STARTED = new AtomicBoolean();
+    private final Map<String, ChannelCommandSource> channelSenders = new ConcurrentHashMap<String, ChannelCommandSource>();
     @Setting("ssl") private SSlConfiguration ssl;
     @Setting("nick") private String nick = "NarwhalBot";
-    @Setting("channels") private Map<String, Map<?, ?>> rawChannels = createDefaultChannels();
+    @Setting("channels") private volatile Map<String, Map<?, ?>> rawChannels = createDefaultChannels();
     @Setting("port") private int port = 6667;
     @Setting("nickserv-pass") private String nickServPass;
     @Setting("strip-color") private boolean stripColor;
     @Setting("bind-address") private String bindAddress;
     @Setting("password") private String password;
     @Setting("connect-timeout") private int connectTimeout = 10000;
+    /**
+     * Milliseconds from starting to connect until registration must be complete
+     */
+    @Setting("startup-deadline") private long startupDeadlineTime = 30000;
+    @Setting("flood-control") private FloodControlConfiguration floodControl = new FloodControlConfiguration();
+    /**
+     * Milliseconds a user's command source may go unused before it is discarded
+     */
+    @Setting("sender-idle-ttl") private long senderIdleTtl = 1800000;
+    @Setting("reconnect") private ReconnectConfiguration reconnect = new ReconnectConfiguration();
+    /**
+     * IRCv3 capabilities to request. Servers that do not support one simply do not enable it.
+     */
+    @Setting("capabilities") private List<String> capabilities = new ArrayList<String>(Arrays.asList("multi-prefix"));
+    /**
+     * Whether to send one PRIVMSG to several channels when the server's TARGMAX allows it
+     */
+    @Setting("multi-target") private boolean multiTarget = true;
+    @Setting("dispatch") private DispatchConfiguration dispatch = new DispatchConfiguration();
 
     @ConfigSerializable
     private static class SSlConfiguration {
@@ -75,14 +131,20 @@ public class BotSession {
         this.server = server;
         this.plugin = plugin;
         Configuration.Builder<NarwhalBot> botConfig = new Configuration.Builder<NarwhalBot>()
-                .setMessageDelay(250)
+                .setMessageDelay(0) // Pacing is handled by our OutboundScheduler
                 .setSocketTimeout(connectTimeout)
                 .setLogin("Narwhal")
+                // Events reach our listener on the input thread, and it hands them to our dispatcher
+                .setListenerManager(new ThreadedListenerManager<NarwhalBot>(MoreExecutors.sameThreadExecutor()))
                 .addListener(new NarwhalBotListener(this, plugin))
                 .setServer(server, port)
                 .setServerPassword(password)
                 .setNickservPassword(nickServPass)
-                .setIdentServerEnabled(true);
+                .setIdentServerEnabled(true)
+                .setCapEnabled(!capabilities.isEmpty());
+        for (String capability : capabilities) {
+            botConfig.addCapHandler(new EnableCapHandler(capability, true));
+        }
         if (bindAddress != null && !bindAddress.isEmpty()) {
             try {
                 botConfig.setLocalAddress(InetAddress.getByName(bindAddress));
@@ -103,16 +165,39 @@ public class BotSession {
 
 
         this.bot = new NarwhalBot(botConfig.buildConfiguration(), plugin.doesDebugLog());
+        this.outbound = new OutboundScheduler(bot, server, plugin.getLogger(), plugin.getMetrics());
+        this.dispatcher = new EventDispatcher(server, dispatch, plugin.getLogger());
     }
 
+    /**
+     * Connect to this session's server. This blocks for as long as the connection lasts, so it should
+     * be called on a thread of its own. Channels are joined once registration completes.
+     *
+     * @return Whether the connection was registered before it ended
+     */
     public boolean connect() {
         boolean success = true;
-        IdentServer.startServer();
-        bot.sendIRC().changeNick(nick);
-
-        if (bindAddress != null && bindAddress.length() > 0) {
+        if (IDENT_STARTED.compareAndSet(false, true)) {
+            IdentServer.startServer();
         }
+        bot.sendIRC().changeNick(nick);
 
+        plugin.getMetrics().counter("session.connect.attempt").increment();
+        connectStartNanos = System.nanoTime();
+        registered = false;
+        outbound.setMaxTargets(1); // Until the server tells us otherwise
+        joined.clear();
+        startSenderSweep();
+        startupDeadline = plugin.getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!registered) {
+                    plugin.getLogger().warning("IRC server " + server + ":" + port + " did not complete registration within "
+                            + startupDeadlineTime + " ms, giving up");
+                    dropConnection();
+                }
+            }
+        }, startupDeadlineTime, TimeUnit.MILLISECONDS);
         try {
             bot.startBot();
         } catch (IOException e) {
@@ -128,52 +213,272 @@ public class BotSession {
             success = false;
         }
 
-        if (success) {
-        } else {
-            if (bot.isConnected()) {
-                bot.stopBotReconnect();
-                bot.getListenerManager().addListener(new ListenerAdapter() {
-                    @Override
-                    public void onDisconnect(DisconnectEvent event) throws Exception {
-                        bot.cleanUp();
-                        bot.getListenerManager().removeListener(this);
-                    }
-                });
-                bot.disconnect();
-            } else {
-                bot.cleanUp();
-            }
+        cancelStartupDeadline();
+        if (!registered) {
+            success = false;
+            plugin.getMetrics().counter("session.connect.failure").increment();
         }
+        dropConnection();
 
         return success;
     }
 
+    /**
+     * Create the supervisor that keeps this session connected. Its {@link SessionSupervisor#run()}
+     * blocks for as long as the session is up.
+     *
+     * @return The new supervisor
+     */
+    public SessionSupervisor supervise() {
+        SessionSupervisor supervisor = new SessionSupervisor(this, reconnect, plugin.getExecutor(), plugin.getLogger());
+        this.supervisor = supervisor;
+        return supervisor;
+    }
+
+    /**
+     * Called once the server has accepted our registration
+     */
+    public void onRegistered() {
+        registered = true;
+        cancelStartupDeadline();
+        plugin.getMetrics().histogram("session.connect.register-time").record(System.nanoTime() - connectStartNanos);
+        SessionSupervisor supervisor = this.supervisor;
+        if (supervisor != null) {
+            supervisor.onRegistered();
+        }
+        plugin.getLogger().info("Connected to IRC server " + server + ":" + port + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStartNanos) + " ms");
+        // Messages are only queued once registered, and each channel's JOIN goes out ahead of them
+        outbound.start(floodControl);
+        joinChannels();
+    }
+
+    private void cancelStartupDeadline() {
+        ScheduledFuture<?> deadline = startupDeadline;
+        if (deadline != null) {
+            deadline.cancel(false);
+            startupDeadline = null;
+        }
+    }
+
+    /**
+     * Called for each RPL_ISUPPORT line the server sends during registration
+     *
+     * @param line The raw line
+     */
+    public void onISupport(String line) {
+        if (multiTarget) {
+            outbound.setMaxTargets(ISupport.getMaxTargets(line, outbound.getMaxTargets()));
+        }
+    }
+
+    /**
+     * Record that the server sent us something
+     */
+    public void onInbound() {
+        SessionSupervisor supervisor = this.supervisor;
+        if (supervisor != null) {
+            supervisor.onInbound();
+        }
+    }
+
+    /**
+     * Called when the bot itself joins a channel
+     *
+     * @param channel The channel's name
+     */
+    public void onSelfJoin(String channel) {
+        kicks.remove(channel);
+        if (!channelSenders.containsKey(channel)) {
+            return;
+        }
+        joined.add(channel);
+        SessionSupervisor supervisor = this.supervisor;
+        if (supervisor != null && joined.containsAll(channelSenders.keySet())) {
+            supervisor.onJoined();
+        }
+    }
+
+    /**
+     * Called when the bot itself leaves a channel, by parting or being kicked
+     *
+     * @param channel The channel's name
+     */
+    public void onSelfPart(String channel) {
+        joined.remove(channel);
+    }
+
+    /**
+     * Rejoin a configured channel after being kicked from it, backing off if it keeps happening
+     *
+     * @param channel The channel's name
+     */
+    public void rejoinChannel(final String channel) {
+        final ChannelCommandSource source = channelSenders.get(channel);
+        SessionSupervisor supervisor = this.supervisor;
+        if (source == null || supervisor == null) {
+            return;
+        }
+        Integer previous = kicks.get(channel);
+        int attempt = previous == null ? 0 : previous;
+        kicks.put(channel, attempt + 1);
+        plugin.getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (registered) {
+                    joinChannel(channel, source);
+                }
+            }
+        }, 1000 + supervisor.backoffDelay(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private void joinChannel(String name, ChannelCommandSource source) {
+        if (source.getKey() != null) {
+            bot.sendIRC().joinChannel(name, source.getKey());
+        } else {
+            bot.sendIRC().joinChannel(name);
+        }
+    }
+
+    /**
+     * Send a PING to check that the connection is still alive
+     */
+    public void sendPing() {
+        bot.sendRaw().rawLineNow("PING :" + server);
+    }
+
+    /**
+     * Drop the connection without sending a QUIT. The channels are taken out of the routing table
+     * until they are joined again.
+     */
+    public void dropConnection() {
+        registered = false;
+        outbound.stop();
+        stopSenderSweep();
+        if (!channelSenders.isEmpty()) {
+            channelSenders.clear();
+            joined.clear();
+            plugin.rebuildRoutes();
+        }
+        if (bot.isConnected()) {
+            bot.stopBotReconnect();
+            bot.getListenerManager().addListener(new ListenerAdapter() {
+                @Override
+                public void onDisconnect(DisconnectEvent event) throws Exception {
+                    bot.cleanUp();
+                    bot.getListenerManager().removeListener(this);
+                }
+            });
+            bot.disconnect();
+        } else {
+            bot.cleanUp();
+        }
+    }
+
     public void joinChannels() {
         for (Entry<String, Map<?, ?>> entry : rawChannels.entrySet()) {
-            ChannelCommandSource source = new ChannelCommandSource(plugin, new MapConfiguration(entry.getValue()),
-                    bot.getChannel(entry.getKey()), stripColor);
-            try {
-                source.load();
-            } catch (ConfigurationException e) {
-                plugin.getLogger().log(Level.SEVERE, "Error loading channel config data!", e);
-            }
-            if (source.getKey() != null) {
-                bot.sendIRC().joinChannel(entry.getKey(), source.getKey());
-            } else {
-                bot.sendIRC().joinChannel(entry.getKey());
-            }
+            ChannelCommandSource source = createChannel(entry.getKey(), entry.getValue());
             channelSenders.put(entry.getKey(), source);
-            try {
-                source.save();
-            } catch (ConfigurationException ignore) {
+            joinChannel(entry.getKey(), source);
+        }
+        plugin.rebuildRoutes();
+    }
+
+    private ChannelCommandSource createChannel(String name, Map<?, ?> rawChannel) {
+        ChannelCommandSource source = new ChannelCommandSource(plugin, this, new MapConfiguration(rawChannel),
+                bot.getChannel(name), stripColor);
+        try {
+            source.load();
+        } catch (ConfigurationException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading channel config data!", e);
+        }
+        source.compileFormats();
+        try {
+            source.save();
+        } catch (ConfigurationException ignore) {
+        }
+        return source;
+    }
+
+    /**
+     * Apply a new channel configuration without reconnecting. Channels no longer configured are parted,
+     * new channels are joined, and channels whose settings changed have their source replaced in place.
+     * While not registered only the configuration is kept, to be used when the channels are next joined.
+     *
+     * @param channels The new channel configuration
+     */
+    public void updateChannels(Map<String, Map<?, ?>> channels) {
+        final Map<String, Map<?, ?>> previous = rawChannels;
+        rawChannels = channels;
+        for (String name : previous.keySet()) {
+            if (!channels.containsKey(name) && channelSenders.remove(name) != null) {
+                joined.remove(name);
+                if (registered) {
+                    bot.sendRaw().rawLine("PART " + name + " :Removed from NarwhalIRC config");
+                }
+            }
+        }
+        if (registered) { // Otherwise the channels are created when they are joined on registration
+            for (Entry<String, Map<?, ?>> entry : channels.entrySet()) {
+                Map<?, ?> old = previous.get(entry.getKey());
+                if (old != null && old.equals(entry.getValue()) && channelSenders.containsKey(entry.getKey())) {
+                    continue;
+                }
+                ChannelCommandSource source = createChannel(entry.getKey(), entry.getValue());
+                if (channelSenders.put(entry.getKey(), source) == null) {
+                    joinChannel(entry.getKey(), source);
+                }
             }
         }
+        plugin.rebuildRoutes();
     }
 
     public void quit(String reason) {
+        SessionSupervisor supervisor = this.supervisor;
+        if (supervisor != null) {
+            supervisor.stop();
+        }
+        cancelStartupDeadline();
         bot.sendIRC().quitServer(reason);
+        outbound.stop();
+        stopSenderSweep();
         senders.clear();
         channelSenders.clear();
+        dispatcher.shutdown();
+        plugin.rebuildRoutes();
+    }
+
+    private void startSenderSweep() {
+        stopSenderSweep();
+        if (senderIdleTtl <= 0) {
+            return;
+        }
+        final long idleNanos = TimeUnit.MILLISECONDS.toNanos(senderIdleTtl);
+        final long period = Math.max(1000, senderIdleTtl / 4);
+        senderSweep = plugin.getExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                int evicted = senders.evictIdle(idleNanos);
+                if (evicted > 0 && plugin.doesDebugLog()) {
+                    plugin.getLogger().info("Discarded " + evicted + " idle command sources on " + server);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopSenderSweep() {
+        if (senderSweep != null) {
+            senderSweep.cancel(false);
+            senderSweep = null;
+        }
+    }
+
+    /**
+     * @return The state of this session's connection
+     */
+    public SessionState getState() {
+        SessionSupervisor supervisor = this.supervisor;
+        return supervisor == null ? SessionState.STOPPED : supervisor.getState();
     }
 
     public String getServer() {
@@ -181,33 +486,80 @@ public class BotSession {
     }
 
     public BotCommandSource getSender(String name, String chan) {
-        User user = bot.getUserChannelDao().getUser(name);
+        User user = senders.getUser(name);
+        if (user == null) {
+            user = bot.getUserChannelDao().getUser(name);
+        }
         Channel channel = chan == null ? null : bot.getUserChannelDao().getChannel(chan);
         return getCommandSource(user, channel);
     }
 
+    /**
+     * Called when users join, leave or change nick in one of our channels
+     */
+    public void onUsersChanged() {
+        usersVersion.incrementAndGet();
+        nicks = null;
+    }
+
+    /**
+     * Find users in our channels by the start of their nick
+     *
+     * @param prefix The start of a nick
+     * @param limit The most users to return
+     * @return The matching users, a user with exactly that nick alone, otherwise the shortest nicks first
+     */
+    public List<User> completeNick(String prefix, int limit) {
+        NameIndex<User> nicks = this.nicks;
+        if (nicks == null) {
+            final int version = usersVersion.get();
+            nicks = new NameIndex<User>();
+            for (User user : bot.getUserChannelDao().getAllUsers()) {
+                nicks.add(user, user.getNick(), user.getNick());
+            }
+            if (version == usersVersion.get()) {
+                this.nicks = nicks;
+            }
+        }
+        return nicks.match(prefix, limit);
+    }
+
     public BotCommandSource getCommandSource(User user, Channel channel) {
-        Map<String, BotCommandSource> inChannel = NarwhalIRCUtil.getNestedMap(senders,
-                channel == null ? null : channel.getName());
-        BotCommandSource source = inChannel.get(user.getNick());
+        BotCommandSource source = senders.get(user, channel);
         if (source == null) {
-            source = new BotCommandSource(plugin, user, channel, stripColor);
-            inChannel.put(user.getNick(), source);
+            source = senders.putIfAbsent(new BotCommandSource(plugin, this, user, channel, stripColor));
         }
         return source;
     }
 
     public void removeSender(User user, Channel channel) {
-        Map<String, BotCommandSource> inChannel = NarwhalIRCUtil.getNestedMap(senders, channel.getName());
-        if (inChannel != null) {
-            inChannel.remove(user.getNick());
-        }
+        senders.remove(user, channel);
     }
 
     public void removeSender(User user) {
-        for (Channel channel : user.getChannels()) {
-            removeSender(user, channel);
-        }
+        senders.remove(user);
+    }
+
+    /**
+     * Keep a user's command sources across a nick change
+     *
+     * @param user The user whose nick changed
+     * @param oldNick The previous nick
+     * @param newNick The new nick
+     */
+    public void renameSender(User user, String oldNick, String newNick) {
+        senders.rename(user, oldNick, newNick);
+    }
+
+    /**
+     * @return The scheduler all messages to this server are sent through
+     */
+    public OutboundScheduler getOutbound() {
+        return outbound;
+    }
+
+    public EventDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     public Collection<ChannelCommandSource> getChannels() {
@@ -223,12 +575,37 @@ public class BotSession {
      *
      * @param user The User who sent the command
      * @param channel The Channel this command came from
-     * @param rawCmd The arguments for the command
+     * @param command The command and its arguments
      * @return whether the command could be found.
      */
-    public boolean handleCommand(User user, Channel channel, String rawCmd) {
+    public boolean handleCommand(User user, Channel channel, CommandIndex.Match<Command> command) {
         BotCommandSource source = getCommandSource(user, channel);
-        return NarwhalIRCUtil.handleCommand(source, rawCmd, IrcStyleHandler.ID, plugin.getBotCommands());
+        return NarwhalIRCUtil.handleCommand(source, command, IrcStyleHandler.ID);
+    }
+
+    /**
+     * Run a command from IRC through this session's {@link EventDispatcher}, so it does not hold up chat.
+     * Commands over the user's or channel's rate limit are refused.
+     *
+     * @see #handleCommand(User, Channel, CommandIndex.Match)
+     */
+    public void submitCommand(final User user, final Channel channel, final CommandIndex.Match<Command> command) {
+        switch (plugin.getCommandLimiter().acquire(server, user.getLogin() + "@" + user.getHostmask(), channel == null ? null : channel.getName(),
+                command.getCommand() == null ? command.getName() : command.getCommand().getPreferredName())) {
+            case NOTIFY:
+                getCommandSource(user, channel).sendMessage(ChatStyle.RED, "You are sending commands too quickly, slow down");
+                return;
+            case DROP:
+                return;
+        }
+        if (!dispatcher.executeCommand(new Runnable() {
+            @Override
+            public void run() {
+                handleCommand(user, channel, command);
+            }
+        })) {
+            getCommandSource(user, channel).sendMessage(ChatStyle.RED, "Too many commands are running, try again in a moment");
+        }
     }
 
 }
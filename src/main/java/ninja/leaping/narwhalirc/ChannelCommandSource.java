@@ -20,7 +20,11 @@ package ninja.leaping.narwhalirc;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.narwhalirc.chatstyle.CompiledTemplate;
 import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.metrics.StripedCounter;
+import ninja.leaping.narwhalirc.outbound.OutboundPriority;
+import ninja.leaping.narwhalirc.relay.FormatClass;
 import org.pircbotx.Channel;
 import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.SubjectCollection;
@@ -37,22 +41,35 @@ import java.util.*;
  */
 public class ChannelCommandSource implements CommandSource {
     public static final Placeholder NAME = new Placeholder("NAME"), CHANNEL = new Placeholder("CHANNEL"), MESSAGE = new Placeholder("MESSAGE"), EVENT = new Placeholder("EVENT");
+    /**
+     * The slot indices of placeholders in compiled formats
+     */
+    public static final int NAME_SLOT = 0, CHANNEL_SLOT = 1, MESSAGE_SLOT = 2, EVENT_SLOT = 3;
+    private static final Placeholder[] SLOTS = {NAME, CHANNEL, MESSAGE, EVENT};
 
 	@Setting("key") private String channelKey;
-	@Setting("receive-events") private Set<PassedEvent> receiveEvents = new HashSet<PassedEvent>(Arrays.asList(PassedEvent.values()));
-    @Setting("send-events") private Set<PassedEvent> sendEvents = new HashSet<PassedEvent>(Arrays.asList(PassedEvent.values()));
+	@Setting("receive-events") private Set<PassedEvent> receiveEvents = EnumSet.allOf(PassedEvent.class);
+    @Setting("send-events") private Set<PassedEvent> sendEvents = EnumSet.allOf(PassedEvent.class);
     @Setting({"format", "irc-to-server"}) public ChatTemplate ircToServerFormat = new ChatTemplate(new ChatArguments("<", NAME, "> ", CHANNEL, ": ", MESSAGE));
     @Setting({"format", "server-to-irc"}) private ChatTemplate serverToIrcFormat = new ChatTemplate(new ChatArguments(EVENT));
+    @Setting("pack-lines") private boolean packLines = false;
 
     private final NarwhalIRCPlugin plugin;
+    private final BotSession session;
     private final Channel channel;
     private boolean stripColor;
+    private final StripedCounter linesSent, linesDeduped;
+    private volatile FormatClass serverToIrcClass;
+    private volatile CompiledTemplate compiledIrcToServer, compiledServerToIrc;
     private final AtomicReference<ChatChannel> activeChannel = new AtomicReference<ChatChannel>(NarwhalIRCPlugin.IRC_BROADCAST_CHANNEL);
 
-    public ChannelCommandSource(NarwhalIRCPlugin plugin, Channel channel, boolean stripColor) {
+    public ChannelCommandSource(NarwhalIRCPlugin plugin, BotSession session, Channel channel, boolean stripColor) {
         this.plugin = plugin;
+        this.session = session;
         this.channel = channel;
         this.stripColor = stripColor;
+        this.linesSent = plugin.getMetrics().counter("irc.outbound.line");
+        this.linesDeduped = plugin.getMetrics().counter("irc.outbound.deduped");
     }
 
 	public String getKey() {
@@ -84,6 +101,64 @@ public class ChannelCommandSource implements CommandSource {
         return serverToIrcFormat;
     }
 
+    /**
+     * Compile this channel's formats and event sets. Called once the configuration has been loaded.
+     */
+    public void compileFormats() {
+        receiveEvents = toEnumSet(receiveEvents);
+        sendEvents = toEnumSet(sendEvents);
+        compiledIrcToServer = compileFormat(ircToServerFormat);
+        compiledServerToIrc = compileFormat(serverToIrcFormat);
+        serverToIrcClass = null;
+    }
+
+    private static Set<PassedEvent> toEnumSet(Set<PassedEvent> events) {
+        return events.isEmpty() ? EnumSet.noneOf(PassedEvent.class) : EnumSet.copyOf(events);
+    }
+
+    /**
+     * Compile a template with the placeholders used by channel formats as slots
+     *
+     * @param template The template to compile
+     * @return The compiled template, with slots at {@link #NAME_SLOT}, {@link #CHANNEL_SLOT},
+     *          {@link #MESSAGE_SLOT} and {@link #EVENT_SLOT}
+     */
+    public static CompiledTemplate compileFormat(ChatTemplate template) {
+        return CompiledTemplate.compile(template, SLOTS);
+    }
+
+    public CompiledTemplate getCompiledIrcToServer() {
+        CompiledTemplate compiled = compiledIrcToServer;
+        if (compiled == null) {
+            compiledIrcToServer = compiled = compileFormat(ircToServerFormat);
+        }
+        return compiled;
+    }
+
+    public CompiledTemplate getCompiledServerToIrc() {
+        CompiledTemplate compiled = compiledServerToIrc;
+        if (compiled == null) {
+            compiledServerToIrc = compiled = compileFormat(serverToIrcFormat);
+        }
+        return compiled;
+    }
+
+    /**
+     * @return The equivalence class of this channel's server-to-irc format
+     */
+    public FormatClass getServerToIrcClass() {
+        FormatClass formatClass = serverToIrcClass;
+        if (formatClass == null) {
+            formatClass = new FormatClass(serverToIrcFormat.toFormatString(), stripColor);
+            serverToIrcClass = formatClass;
+        }
+        return formatClass;
+    }
+
+    public boolean doesStripColor() {
+        return stripColor;
+    }
+
 	// -- Spout interface methods
 
     @Override
@@ -112,14 +187,49 @@ public class ChannelCommandSource implements CommandSource {
 
     @Override
     public boolean sendMessage(ChatArguments message) {
+        return sendMessage(message, OutboundPriority.CHAT);
+    }
+
+    /**
+     * Send a message to this channel in the given outbound lane
+     *
+     * @param message The message to send
+     * @param priority The lane to queue the message in
+     * @return Whether the message was sent
+     */
+    public boolean sendMessage(ChatArguments message, OutboundPriority priority) {
         String messageStr = message.asString(IrcStyleHandler.ID);
-        if (!NarwhalServerListener.checkDupeMessage(messageStr)) {
+        return sendRendered(messageStr, stripColor ? message.getPlainString() : messageStr, priority);
+    }
+
+    /**
+     * Send an already rendered message to this channel.
+     *
+     * @param ircMessage The message rendered with IRC formatting, used for duplicate checking
+     * @param outgoing The text actually sent, which is the plain text when this channel strips colors
+     * @return Whether the message was sent
+     */
+    public boolean sendRendered(String ircMessage, String outgoing) {
+        return sendRendered(ircMessage, outgoing, OutboundPriority.CHAT);
+    }
+
+    public boolean sendRendered(String ircMessage, String outgoing, OutboundPriority priority) {
+        if (plugin.getDedup().isDuplicate(ircMessage, getName())) {
+            linesDeduped.increment();
             return false;
         }
-        channel.getBot().sendMessage(channel, stripColor ? message.getPlainString() : messageStr);
+        linesSent.increment();
+        session.getOutbound().send(priority, channel.getName(), outgoing, packLines && priority != OutboundPriority.COMMAND);
         return true;
     }
 
+    /**
+     * @return The number of bytes of message text that fit in one line to this channel
+     */
+    public int getLineBudget() {
+        return session.getOutbound().getLineBudget(channel.getName());
+    }
+
     @Override
     public boolean sendRawMessage(Object... message) {
         return sendRawMessage(new ChatArguments(message));
@@ -127,7 +237,7 @@ public class ChannelCommandSource implements CommandSource {
 
     @Override
     public boolean sendRawMessage(ChatArguments message) {
-        channel.getBot().sendMessage(channel, message.asString(IrcStyleHandler.ID));
+        session.getOutbound().send(OutboundPriority.COMMAND, channel.getName(), message.asString(IrcStyleHandler.ID));
         return true;
     }
 
@@ -156,14 +266,14 @@ public class ChannelCommandSource implements CommandSource {
     @Override
     public void sendMessage(String... strings) {
        for (String msg : strings) {
-           channel.send().message(msg);
+           session.getOutbound().send(OutboundPriority.CHAT, channel.getName(), msg);
        }
     }
 
     @Override
     public void sendMessage(Message... messages) {
         for (Message msg : messages) {
-            channel.send().message(msg.toString());
+            session.getOutbound().send(OutboundPriority.CHAT, channel.getName(), msg.toString());
         }
 
     }
@@ -18,6 +18,7 @@
 package ninja.leaping.narwhalirc;
 
 import org.pircbotx.Channel;
+import org.pircbotx.User;
 import org.spout.api.chat.ChatArguments;
 import org.spout.api.chat.style.ChatStyle;
 import org.spout.api.command.CommandContext;
@@ -27,11 +28,20 @@ import org.spout.api.command.annotated.CommandPermissions;
 import org.spout.api.exception.CommandException;
 
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Commands to manage NarwhalIRC
  */
 public class IRCCommands {
+    /**
+     * The most nicks suggested when a nick matches several
+     */
+    private static final int MAX_SUGGESTIONS = 5;
+    /**
+     * Ends a nick that should be completed from the users in our channels, as in "esper:zml*"
+     */
+    private static final String COMPLETE_SUFFIX = "*";
     private final NarwhalIRCPlugin plugin;
 
     public IRCCommands(NarwhalIRCPlugin plugin) {
@@ -40,7 +50,7 @@ public class IRCCommands {
 
     @Command(aliases = "irc", desc = "Commands related to NarwhalIRC")
     public class IRCCommand {
-        @Command(aliases = {"msg", "tell", "message"}, desc = "Send a message to a user or channel in IRC", usage = "<server>:<user> <message>", min = 2, max = -1)
+        @Command(aliases = {"msg", "tell", "message"}, desc = "Send a message to a user or channel in IRC", usage = "<server>:<user>[*] <message>", min = 2, max = -1)
         @CommandPermissions("narwhal.irc.msg")
         public void msg(CommandContext args, CommandSource sender) throws CommandException {
             CommandSource target;
@@ -56,6 +66,23 @@ public class IRCCommands {
 
             if (split[1].startsWith("#")) {
                 target = bot.getChannel(split[1]);
+            } else if (split[1].endsWith(COMPLETE_SUFFIX)) {
+                // Complete the nick from users in our channels. Nicks cannot contain the suffix, so this is always a request.
+                final String prefix = split[1].substring(0, split[1].length() - COMPLETE_SUFFIX.length());
+                List<User> users = bot.completeNick(prefix, MAX_SUGGESTIONS);
+                if (users.isEmpty()) {
+                    throw new CommandException("No IRC user in our channels matched " + prefix);
+                } else if (users.size() > 1) {
+                    StringBuilder suggestions = new StringBuilder();
+                    for (User user : users) {
+                        if (suggestions.length() > 0) {
+                            suggestions.append(", ");
+                        }
+                        suggestions.append(user.getNick());
+                    }
+                    throw new CommandException("More than one IRC user matched " + prefix + ": " + suggestions);
+                }
+                target = bot.getSender(users.get(0).getNick(), null);
             } else {
                 target = bot.getSender(split[1], null);
             }
@@ -81,5 +108,16 @@ public class IRCCommands {
                 sender.sendMessage(builder);
             }
         }
+
+        @Command(aliases = "stats", desc = "Show NarwhalIRC's metrics")
+        @CommandPermissions("narwhal.irc.stats")
+        public void stats(CommandContext args, CommandSource sender) throws CommandException {
+            for (BotSession bot : plugin.getBots()) {
+                sender.sendMessage(ChatStyle.BLUE, bot.getServer(), ": ", ChatStyle.RESET, bot.getState());
+            }
+            for (String line : plugin.getMetrics().summarize()) {
+                sender.sendMessage(line);
+            }
+        }
     }
 }
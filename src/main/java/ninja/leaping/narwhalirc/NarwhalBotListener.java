@@ -17,56 +17,181 @@
  */
 package ninja.leaping.narwhalirc;
 
+import ninja.leaping.narwhalirc.chatstyle.CompiledTemplate;
 import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.metrics.Histogram;
+import ninja.leaping.narwhalirc.metrics.MetricsRegistry;
+import ninja.leaping.narwhalirc.metrics.StripedCounter;
+import ninja.leaping.narwhalirc.util.CommandIndex;
+import org.pircbotx.Channel;
 import org.pircbotx.PircBotX;
+import org.pircbotx.User;
+import org.pircbotx.hooks.Event;
 import org.pircbotx.hooks.Listener;
 import org.pircbotx.hooks.ListenerAdapter;
 import org.pircbotx.hooks.events.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
 /**
- * Listener for events coming from a NarwhalBot instance
+ * Listener for events coming from a NarwhalBot instance. Events arrive on the input thread, where
+ * PircBotX's state is as it was when they arrived, so handlers read what they need there: nicks are
+ * copied then, since a later nick change renames the same {@link User}. The rest of the handling of
+ * a channel event is queued on the session's {@link ninja.leaping.narwhalirc.dispatch.EventDispatcher}
+ * under the channel's name. Quits and nick changes affect every channel the user is in, so they are
+ * handled once the events already queued for each of those channels have been.
  */
 public class NarwhalBotListener extends ListenerAdapter<NarwhalBot> implements Listener<NarwhalBot> {
     private final BotSession session;
     private final NarwhalIRCPlugin plugin;
+    private final Histogram handleTime;
+    private final StripedCounter messages, actions, joins, parts, quits, kicks, commands;
 
     public NarwhalBotListener(BotSession session, NarwhalIRCPlugin plugin) {
         this.session = session;
         this.plugin = plugin;
+        MetricsRegistry metrics = plugin.getMetrics();
+        this.handleTime = metrics.histogram("irc.inbound.handle-time");
+        this.messages = metrics.counter("irc.inbound.message");
+        this.actions = metrics.counter("irc.inbound.action");
+        this.joins = metrics.counter("irc.inbound.join");
+        this.parts = metrics.counter("irc.inbound.part");
+        this.quits = metrics.counter("irc.inbound.quit");
+        this.kicks = metrics.counter("irc.inbound.kick");
+        this.commands = metrics.counter("irc.inbound.command");
     }
 
     @Override
-    public void onMessage(MessageEvent<NarwhalBot> event) {
-        if (plugin.doesChannelCommands()) {
-            ChannelCommandSource source = session.getChannel(event.getChannel().getName());
-            if (source == null) {
-                return;
-            }
+    public void onEvent(Event<NarwhalBot> event) throws Exception {
+        session.onInbound();
+        try {
+            super.onEvent(event);
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Error handling IRC event " + event.getClass().getSimpleName(), e);
+        }
+    }
 
-            if (event.getMessage().startsWith(plugin.getCommandPrefix())) {
-                session.handleCommand(event.getUser(), event.getChannel(), event.getMessage().substring(plugin.getCommandPrefix().length()));
-            } else if (source.sendsEvent(PassedEvent.MESSAGE)) {
-                ChatArguments args = source.getIrcToServerFormat().getArguments();
-                if (args.hasPlaceholder(ChannelCommandSource.NAME)) {
-                    args.setPlaceHolder(ChannelCommandSource.NAME, new ChatArguments(event.getUser().getNick()));
-                }
-                if (args.hasPlaceholder(ChannelCommandSource.CHANNEL)) {
-                    args.setPlaceHolder(ChannelCommandSource.CHANNEL, new ChatArguments(event.getChannel().getName()));
+    /**
+     * Handle part of an event after every event already queued for its channel
+     *
+     * @param channel The channel's name
+     * @param handler The handler
+     * @return false if the channel's queue was full and the handler was dropped
+     */
+    private boolean dispatch(String channel, final Runnable handler) {
+        return session.getDispatcher().execute(channel, new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                try {
+                    handler.run();
+                } finally {
+                    handleTime.record(System.nanoTime() - start);
                 }
-                if (args.hasPlaceholder(ChannelCommandSource.MESSAGE)) {
-                    args.setPlaceHolder(ChannelCommandSource.MESSAGE, ChatArguments.fromString(event.getMessage(), IrcStyleHandler.ID));
+            }
+        });
+    }
+
+    /**
+     * Handle part of an event once the events already queued for every one of several channels have been handled
+     *
+     * @param channels The channels' names, at least one
+     * @param handler The handler
+     */
+    private void dispatchAfter(List<String> channels, final Runnable handler) {
+        final AtomicInteger remaining = new AtomicInteger(channels.size());
+        final Runnable barrier = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    handler.run();
                 }
+            }
+        };
+        for (String channel : channels) {
+            if (!dispatch(channel, barrier)) {
+                barrier.run(); // Nothing will run it from the full queue, and the handler must still run once
+            }
+        }
+    }
 
-                plugin.getServer().broadcastMessage(NarwhalIRCPlugin.IRC_BROADCAST_CHANNEL, args);
+    /**
+     * @param user A user
+     * @return The names of our channels the user is in
+     */
+    private List<String> getChannelsWith(User user) {
+        List<String> channels = new ArrayList<String>();
+        for (ChannelCommandSource source : session.getChannels()) {
+            if (source.getChannel().getUsers().contains(user)) {
+                channels.add(source.getChannel().getName());
             }
         }
+        return channels;
+    }
+
+    @Override
+    public void onConnect(ConnectEvent<NarwhalBot> event) {
+        session.onRegistered();
+    }
+
+    @Override
+    public void onServerResponse(ServerResponseEvent<NarwhalBot> event) {
+        if (event.getCode() == 5) { // RPL_ISUPPORT
+            session.onISupport(event.getRawLine());
+        }
+    }
+
+    @Override
+    public void onMessage(MessageEvent<NarwhalBot> event) {
+        final String nick = event.getUser().getNick();
+        final String botNick = event.getBot().getNick();
+        if (nick.equals(botNick)) {
+            return; // Our own message, echoed back if echo-message is enabled
+        }
+        messages.increment();
+        if (!plugin.doesChannelCommands()) {
+            return;
+        }
+        final User user = event.getUser();
+        final Channel channel = event.getChannel();
+        final String message = event.getMessage();
+        dispatch(channel.getName(), new Runnable() {
+            @Override
+            public void run() {
+                ChannelCommandSource source = session.getChannel(channel.getName());
+                if (source == null) {
+                    return;
+                }
+
+                CommandIndex.Match<Command> command = plugin.getCommandIndex().match(message, botNick);
+                if (command != null) {
+                    commands.increment();
+                    session.submitCommand(user, channel, command);
+                } else if (source.sendsEvent(PassedEvent.MESSAGE)) {
+                    CompiledTemplate format = source.getCompiledIrcToServer();
+                    Object[] values = new Object[ChannelCommandSource.EVENT_SLOT + 1];
+                    values[ChannelCommandSource.NAME_SLOT] = nick;
+                    values[ChannelCommandSource.CHANNEL_SLOT] = channel.getName();
+                    if (format.hasSlot(ChannelCommandSource.MESSAGE_SLOT)) {
+                        values[ChannelCommandSource.MESSAGE_SLOT] = ChatArguments.fromString(message, IrcStyleHandler.ID);
+                    }
+
+                    plugin.broadcastServerMessage(new ChatArguments(format.fill(values)));
+                }
+            }
+        });
     }
 
     @Override
     public void onPrivateMessage(PrivateMessageEvent<NarwhalBot> event) {
         if (plugin.doesPrivateCommands()) {
-            if (event.getMessage().startsWith(plugin.getCommandPrefix())) {
-                session.handleCommand(event.getUser(), null, event.getMessage().substring(plugin.getCommandPrefix().length()));
+            CommandIndex.Match<Command> command = plugin.getCommandIndex().match(event.getMessage(), event.getBot().getNick());
+            if (command != null) {
+                commands.increment();
+                session.submitCommand(event.getUser(), null, command);
             } else {
                 event.getBot().sendMessage(event.getUser(),
                         "I'm a teapot! Ask the server admin if I am short or stout.");
@@ -76,120 +201,189 @@ public class NarwhalBotListener extends ListenerAdapter<NarwhalBot> implements L
 
     @Override
     public void onJoin(JoinEvent<NarwhalBot> event) {
-        ChannelCommandSource channel = session.getChannel(event.getChannel().getName());
-        if (channel == null) {
-            return;
-        }
-        if (event.getUser().getNick().equals(event.getBot().getNick())) {
-            return;
-        }
-        if (!channel.sendsEvent(PassedEvent.JOIN)) {
-            return;
-        }
+        joins.increment();
+        session.onUsersChanged();
+        final String nick = event.getUser().getNick();
+        final boolean self = nick.equals(event.getBot().getNick());
+        final String channelName = event.getChannel().getName();
+        dispatch(channelName, new Runnable() {
+            @Override
+            public void run() {
+                ChannelCommandSource channel = session.getChannel(channelName);
+                if (channel == null) {
+                    return;
+                }
+                if (self) {
+                    session.onSelfJoin(channelName);
+                    return;
+                }
+                if (!channel.sendsEvent(PassedEvent.JOIN)) {
+                    return;
+                }
 
-        plugin.getServer().broadcastMessage(NarwhalIRCPlugin.IRC_BROADCAST_CHANNEL, ChatStyle.BLUE, event.getUser().getNick(),
-                " has joined ", event.getChannel().getName());
+                plugin.broadcastServerMessage(new ChatArguments(ChatStyle.BLUE, nick, " has joined ", channelName));
+            }
+        });
     }
 
     @Override
     public void onPart(PartEvent<NarwhalBot> event) {
-        ChannelCommandSource channel = session.getChannel(event.getChannel().getName());
-        if (channel == null) {
-            return;
-        }
+        parts.increment();
+        session.onUsersChanged();
+        final User user = event.getUser();
+        final String nick = user.getNick();
+        final boolean self = nick.equals(event.getBot().getNick());
+        final Channel chan = event.getChannel();
+        final String reason = event.getReason();
+        dispatch(chan.getName(), new Runnable() {
+            @Override
+            public void run() {
+                ChannelCommandSource channel = session.getChannel(chan.getName());
+                if (channel == null) {
+                    return;
+                }
 
-        if (event.getUser().getNick().equals(event.getBot().getNick())) {
-            return;
-        }
-        session.removeSender(event.getUser(), event.getChannel());
+                if (self) {
+                    session.onSelfPart(chan.getName());
+                    return;
+                }
+                session.removeSender(user, chan);
 
-        if (channel.sendsEvent(PassedEvent.QUIT)) {
-            String message;
-            if (event.getReason().equals("")) {
-                message = "";
-            } else {
-                message = ": " + event.getReason();
+                if (channel.sendsEvent(PassedEvent.QUIT)) {
+                    String message;
+                    if (reason.equals("")) {
+                        message = "";
+                    } else {
+                        message = ": " + reason;
+                    }
+                    plugin.broadcastServerMessage(new ChatArguments(ChatStyle.BLUE, nick,
+                            " has left ", chan.getName(), message));
+                }
             }
-            plugin.getServer().broadcastMessage(NarwhalIRCPlugin.IRC_BROADCAST_CHANNEL, ChatStyle.BLUE, event.getUser().getNick(),
-                    " has left ", event.getChannel().getName(), message);
-        }
+        });
     }
 
     @Override
     public void onQuit(QuitEvent<NarwhalBot> event) {
-        boolean broadcastQuit = false;
-        boolean contains = false;
-        for (ChannelCommandSource source : session.getChannels()) {
-            if (source.getChannel().getUsers().contains(event.getUser())) {
-                broadcastQuit |= source.sendsEvent(PassedEvent.QUIT);
-                contains = true;
-            }
-        }
-
-        if (!contains) {
+        quits.increment();
+        session.onUsersChanged();
+        final User user = event.getUser();
+        if (user.equals(event.getBot().getUserBot())) {
             return;
         }
-
-        if (event.getUser().equals(event.getBot().getUserBot())) {
+        final List<String> channels = getChannelsWith(user);
+        if (channels.isEmpty()) {
             return;
         }
+        final String nick = user.getNick();
+        final String reason = event.getReason();
+        dispatchAfter(channels, new Runnable() {
+            @Override
+            public void run() {
+                session.removeSender(user);
 
-        session.removeSender(event.getUser());
-
-        if (broadcastQuit) {
-            String message;
-            if (event.getReason().equals("")) {
-                message = "";
-            } else {
-                message = ": " + event.getReason();
-            }
-            plugin.getServer().broadcastMessage(NarwhalIRCPlugin.IRC_BROADCAST_CHANNEL, ChatStyle.BLUE,
-                    event.getUser().getNick(), " has left IRC", message);
-        }
-    }
-
-    @Override
-    public void onKick(final KickEvent<NarwhalBot> event) {
-        if (event.getRecipient().getNick().equals(event.getBot().getNick())) {
-            plugin.getEngine().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
-                public void run() {
-                    event.getBot().joinChannel(event.getChannel().getName());
+                boolean broadcastQuit = false;
+                for (String channel : channels) {
+                    ChannelCommandSource source = session.getChannel(channel);
+                    broadcastQuit |= source != null && source.sendsEvent(PassedEvent.QUIT);
                 }
-            }, 10000L, TaskPriority.LOW);
-        } else {
-            ChannelCommandSource source = session.getChannel(event.getChannel().getName());
-            if (source != null) {
-                session.removeSender(event.getRecipient(), event.getChannel());
-                if (source.sendsEvent(PassedEvent.KICK)) {
+                if (broadcastQuit) {
                     String message;
-                    if (event.getReason().equals("")) {
+                    if (reason.equals("")) {
                         message = "";
                     } else {
-                        message = ": " + event.getReason();
+                        message = ": " + reason;
                     }
-                    plugin.getServer().broadcastMessage(NarwhalIRCPlugin.IRC_BROADCAST_CHANNEL, ChatStyle.BLUE,
-                            event.getRecipient().getNick(), " has has been kicked from",
-                            event.getChannel().getName(), " by ", event.getSource().getNick(), message);
+                    plugin.broadcastServerMessage(new ChatArguments(ChatStyle.BLUE,
+                            nick, " has left IRC", message));
                 }
             }
-        }
+        });
+    }
+
+    @Override
+    public void onKick(KickEvent<NarwhalBot> event) {
+        kicks.increment();
+        session.onUsersChanged();
+        final User recipient = event.getRecipient();
+        final String nick = recipient.getNick();
+        final boolean self = nick.equals(event.getBot().getNick());
+        final String kicker = event.getSource().getNick();
+        final Channel chan = event.getChannel();
+        final String reason = event.getReason();
+        dispatch(chan.getName(), new Runnable() {
+            @Override
+            public void run() {
+                if (self) {
+                    session.onSelfPart(chan.getName());
+                    session.rejoinChannel(chan.getName());
+                } else {
+                    ChannelCommandSource source = session.getChannel(chan.getName());
+                    if (source != null) {
+                        session.removeSender(recipient, chan);
+                        if (source.sendsEvent(PassedEvent.KICK)) {
+                            String message;
+                            if (reason.equals("")) {
+                                message = "";
+                            } else {
+                                message = ": " + reason;
+                            }
+                            plugin.broadcastServerMessage(new ChatArguments(ChatStyle.BLUE,
+                                    nick, " has has been kicked from",
+                                    chan.getName(), " by ", kicker, message));
+                        }
+                    }
+                }
+            }
+        });
     }
 
     @Override
     public void onAction(ActionEvent<NarwhalBot> event) {
-        ChannelCommandSource channel = session.getChannel(event.getChannel().getName());
-        if (channel == null || !channel.sendsEvent(PassedEvent.ACTION)) {
+        actions.increment();
+        final String nick = event.getUser().getNick();
+        if (nick.equals(event.getBot().getNick())) {
             return;
         }
-        if (!event.getUser().getNick().equals(event.getBot().getNick())) {
-            plugin.getServer().broadcastMessage(NarwhalIRCPlugin.IRC_BROADCAST_CHANNEL, event.getChannel().getName(), ": * ", event.getUser().getNick(), " ", event.getAction());
-        }
+        final String channelName = event.getChannel().getName();
+        final String action = event.getAction();
+        dispatch(channelName, new Runnable() {
+            @Override
+            public void run() {
+                ChannelCommandSource channel = session.getChannel(channelName);
+                if (channel == null || !channel.sendsEvent(PassedEvent.ACTION)) {
+                    return;
+                }
+                plugin.broadcastServerMessage(new ChatArguments(channelName, ": * ", nick, " ", action));
+            }
+        });
+    }
+
+    @Override
+    public void onUserList(UserListEvent<NarwhalBot> event) {
+        session.onUsersChanged();
     }
 
     @Override
     public void onNickChange(NickChangeEvent<NarwhalBot> event) {
-        if (!(event.getOldNick().equals(event.getBot().getNick()) || event.getNewNick().equals(event.getBot().getNick()))) {
-            session.removeSender(event.getUser());
+        session.onUsersChanged();
+        final String oldNick = event.getOldNick(), newNick = event.getNewNick();
+        if (oldNick.equals(event.getBot().getNick()) || newNick.equals(event.getBot().getNick())) {
+            return;
+        }
+        final User user = event.getUser();
+        final Runnable rename = new Runnable() {
+            @Override
+            public void run() {
+                session.renameSender(user, oldNick, newNick);
+            }
+        };
+        // Rename once the lines the user sent under the old nick have been handled
+        List<String> channels = getChannelsWith(user);
+        if (channels.isEmpty()) {
+            rename.run();
+        } else {
+            dispatchAfter(channels, rename);
         }
     }
 }
@@ -24,8 +24,24 @@ import ninja.leaping.configurate.loader.ConfigurationLoader;
 import ninja.leaping.configurate.objectmapping.Setting;
 import ninja.leaping.configurate.objectmapping.serialize.TypeSerializers;
 import ninja.leaping.configurate.transformation.ConfigurationTransformation;
+import ninja.leaping.narwhalirc.dispatch.CommandRateLimiter;
+import ninja.leaping.narwhalirc.dispatch.RateLimitConfiguration;
+import ninja.leaping.narwhalirc.metrics.Gauge;
+import ninja.leaping.narwhalirc.metrics.MetricsConfiguration;
+import ninja.leaping.narwhalirc.metrics.MetricsHttpServer;
+import ninja.leaping.narwhalirc.metrics.MetricsRegistry;
+import ninja.leaping.narwhalirc.outbound.LineSplitter;
+import ninja.leaping.narwhalirc.outbound.OutboundPriority;
+import ninja.leaping.narwhalirc.relay.InboundBuffer;
+import ninja.leaping.narwhalirc.relay.NoticeCoalescer;
+import ninja.leaping.narwhalirc.relay.RecipientCache;
+import ninja.leaping.narwhalirc.relay.RelayConfiguration;
+import ninja.leaping.narwhalirc.relay.RelayWorker;
 import ninja.leaping.narwhalirc.util.ChatTemplateSerializer;
+import ninja.leaping.narwhalirc.util.CommandIndex;
+import ninja.leaping.narwhalirc.util.DedupCache;
 import ninja.leaping.narwhalirc.util.FormatConfigurationMigrator;
+import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
 import org.spongepowered.api.Game;
 import org.spongepowered.api.Server;
 import org.spongepowered.api.event.state.InitializationEvent;
@@ -44,6 +60,10 @@ import java.io.IOError;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
@@ -55,16 +75,61 @@ public class NarwhalIRCPlugin {
      * This is the permission required for users to receive messages sent from IRC
      */
     public static final String IRC_BROADCAST_PERMISSION = "narwhal.irc.broadcast";
+    /**
+     * How long to wait on shutdown for queued messages to be sent
+     */
+    private static final long SHUTDOWN_DRAIN_MILLIS = 2000;
     //public static final ChatChannel IRC_BROADCAST_CHANNEL = new PermissionChatChannel("NarwhalIRC", "narwhal.irc.broadcast");
     /**
      * A Set of permissions that no bot has
      */
     private LocalConfiguration config;
     private final Map<String, BotSession> bots = new ConcurrentHashMap<String, BotSession>();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final MetricsHttpServer metricsServer = new MetricsHttpServer(metrics);
+    /**
+     * Which channels receive each event, rebuilt whenever bots or their channels change
+     */
+    private volatile RoutingTable routes = RoutingTable.EMPTY;
+    /**
+     * The connection settings each live session was started with, to tell on reload whether it must reconnect
+     */
+    private final Map<String, Map<?, ?>> sessionSettings = new HashMap<String, Map<?, ?>>();
     /**
      * The commands available for bots.
      */
     private RootCommand botCommands;
+    /**
+     * The prefixes and aliases of {@link #botCommands}, rebuilt whenever either changes
+     */
+    private volatile CommandIndex<Command> commandIndex;
+    /**
+     * The worker relaying server chat to IRC
+     */
+    private volatile RelayWorker relay;
+    private volatile NoticeCoalescer notices;
+    /**
+     * Lines from IRC waiting to be shown to players
+     */
+    private volatile InboundBuffer inbound;
+    /**
+     * The players lines from IRC are shown to
+     */
+    private volatile RecipientCache recipients = new RecipientCache(this, 0);
+    /**
+     * The online players, for the players bot command
+     */
+    private volatile PlayerRoster roster = new PlayerRoster(this, 0, 400);
+    private volatile DedupCache dedup = new DedupCache(5000, 4096);
+    private volatile CommandRateLimiter commandLimiter = new CommandRateLimiter(new RateLimitConfiguration(), metrics);
+    /**
+     * Executor for NarwhalIRC's own timed tasks, which do not need the server thread
+     */
+    private ScheduledExecutorService executor;
+    /**
+     * Runs each {@link BotSession}'s connection, which blocks for as long as it lasts
+     */
+    private ExecutorService connections;
     @Inject
     private Game game;
     @Inject @DefaultConfig(sharedRoot = true) private ConfigurationLoader<CommentedConfigurationNode> configLoader;
@@ -88,6 +153,8 @@ public class NarwhalIRCPlugin {
         }
 
         this.server = (Server) getEngine();
+        executor = Executors.newSingleThreadScheduledExecutor(NarwhalIRCUtil.daemonThreadFactory("NarwhalIRC-Scheduler"));
+        connections = Executors.newCachedThreadPool(NarwhalIRCUtil.daemonThreadFactory("NarwhalIRC-Connection"));
 
         botCommands = new RootCommand(getEngine());
         TypeSerializers.registerSerializer(new ChatTemplateSerializer());
@@ -96,30 +163,72 @@ public class NarwhalIRCPlugin {
         } catch (IOException e) {
             getLogger().log(Level.SEVERE, "Unable to load configuration for plugin: " + e.getMessage(), e);
         }
+        startRelay();
+        registerGauges();
+        startMetricsServer();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                commandLimiter.evictIdle();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
 
         getEngine().getRootCommand().addSubCommands(this, IRCCommands.class, commandRegistration);
         getEngine().getEventManager().registerEvents(new NarwhalServerListener(this), this);
         botCommands.addSubCommands(this, BasicBotCommands.class, commandRegistration);
+        buildCommandIndex();
     }
 
-    public void reload() {
-        for (BotSession bot : bots.values()) {
-            bot.quit("Reloading NarwhalIRC!");
+    /**
+     * Index the aliases of the bot commands under the configured prefixes
+     */
+    private void buildCommandIndex() {
+        Map<String, Command> commands = new HashMap<String, Command>();
+        for (Command command : botCommands.getChildren()) {
+            commands.put(command.getName(), command);
+            for (String alias : command.getAliases()) {
+                commands.put(alias, command);
+            }
         }
-        bots.clear();
+        List<String> prefixes = new ArrayList<String>(config.extraCommandPrefixes);
+        prefixes.add(config.commandPrefix);
+        commandIndex = new CommandIndex<Command>(prefixes, commands, config.nickCommands);
+    }
+
+    /**
+     * Reload the configuration. Networks whose connection settings are unchanged keep their
+     * connection and only have their channels updated.
+     */
+    public void reload() {
+        final long start = System.nanoTime();
         try {
             loadConfig();
         } catch (IOException e) {
             getLogger().log(Level.SEVERE, "Unable to load configuration for plugin: " + e.getMessage(), e);
         }
+        startRelay();
+        startMetricsServer();
+        buildCommandIndex();
+        getLogger().info("Reloaded NarwhalIRC in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
     }
 
     @Subscribe
     public void onDisable(ServerStoppingEvent event) {
+        metricsServer.stop();
+        stopRelay();
+        // Let the notices flushed above go out before the connections close
+        final long drainDeadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_MILLIS;
+        for (BotSession bot : bots.values()) {
+            bot.getOutbound().drain(Math.max(0, drainDeadline - System.currentTimeMillis()));
+        }
         for (BotSession bot : bots.values()) {
             bot.quit("Disabling");
         }
         bots.clear();
+        sessionSettings.clear();
+        rebuildRoutes();
+        connections.shutdownNow();
+        executor.shutdownNow();
     }
 
     public Game getGame() {
@@ -129,12 +238,39 @@ public class NarwhalIRCPlugin {
     private class LocalConfiguration {
         @Setting("command-prefix")
         public String commandPrefix = ".";
+        @Setting("extra-command-prefixes")
+        public List<String> extraCommandPrefixes = new ArrayList<String>();
+        /**
+         * Whether lines addressed to the bot, like "NarwhalBot: players", are commands
+         */
+        @Setting("nick-commands")
+        public boolean nickCommands = false;
         @Setting("debug-log")
         public boolean debugLog = false;
         @Setting("channel-commands")
         public boolean channelCommands = true;
         @Setting("private-commands")
         public boolean privateCommands = true;
+        @Setting("dedup-ttl")
+        public long dedupTtl = 5000;
+        @Setting("dedup-max-entries")
+        public int dedupMaxEntries = 4096;
+        @Setting("metrics")
+        public MetricsConfiguration metrics = new MetricsConfiguration();
+        @Setting("relay")
+        public RelayConfiguration relay = new RelayConfiguration();
+        @Setting("command-rate-limit")
+        public RateLimitConfiguration commandRateLimit = new RateLimitConfiguration();
+        /**
+         * Milliseconds between rebuilding the player list from every online player
+         */
+        @Setting("roster-refresh")
+        public long rosterRefresh = 30000;
+        /**
+         * The most bytes on one page of the player list
+         */
+        @Setting("roster-page-length")
+        public int rosterPageLength = 400;
         @Setting("connections")
         public Map<String, BotSession> serverMap = createServerMap();
 
@@ -151,21 +287,234 @@ public class NarwhalIRCPlugin {
         config = configLoader.load();
         ConfigurationTransformation migrator = ConfigurationMigrators.format();
         migrator.apply(config);
+        Set<String> removed = new HashSet<String>(bots.keySet());
         for (Map.Entry<String, Map<?, ?>> entry : config.serverMap.entrySet()) {
+            removed.remove(entry.getKey());
+            Map<?, ?> settings = connectionSettings(entry.getValue());
+            BotSession existing = bots.get(entry.getKey());
+            if (existing != null) {
+                if (settings.equals(sessionSettings.get(entry.getKey()))) {
+                    @SuppressWarnings("unchecked") // Channel settings are a map of maps, as BotSession declares them
+                    Map<String, Map<?, ?>> channels = (Map<String, Map<?, ?>>) entry.getValue().get("channels");
+                    if (channels != null) {
+                        existing.updateChannels(channels);
+                    }
+                    continue;
+                }
+                existing.quit("Reconnecting with new settings");
+                bots.remove(entry.getKey());
+            }
+
             BotSession bot = new BotSession(new MapConfiguration(entry.getValue()), entry.getKey(), this);
             bot.load();
-            if (bot.connect()) {
-                bot.joinChannels();
-            } else {
-                bot.save();
-                continue;
-            }
-            bots.put(entry.getKey(), bot);
             bot.save();
+            bots.put(entry.getKey(), bot);
+            sessionSettings.put(entry.getKey(), connectionSettings(entry.getValue()));
+            startSession(entry.getKey(), bot);
         }
+        for (String server : removed) {
+            BotSession bot = bots.remove(server);
+            sessionSettings.remove(server);
+            if (bot != null) {
+                bot.quit("Removed from NarwhalIRC config");
+            }
+        }
+        rebuildRoutes();
         configLoader.save(config);
     }
 
+    /**
+     * @return A copy of a network's settings without its channels, which can change without reconnecting
+     */
+    private static Map<?, ?> connectionSettings(Map<?, ?> rawSession) {
+        Map<Object, Object> settings = new HashMap<Object, Object>(rawSession);
+        settings.remove("channels");
+        return settings;
+    }
+
+    /**
+     * Connect a session on its own thread and keep it connected until it quits
+     *
+     * @param server The server the session is registered under
+     * @param bot The session
+     */
+    private void startSession(final String server, final BotSession bot) {
+        final SessionSupervisor supervisor = bot.supervise();
+        connections.execute(new Runnable() {
+            @Override
+            public void run() {
+                supervisor.run();
+                if (bots.remove(server, bot)) {
+                    rebuildRoutes();
+                }
+            }
+        });
+    }
+
+    private void startRelay() {
+        stopRelay();
+        dedup = new DedupCache(config.dedupTtl, config.dedupMaxEntries);
+        commandLimiter = new CommandRateLimiter(config.commandRateLimit, metrics);
+        RelayWorker relay = new RelayWorker(this, config.relay);
+        relay.start();
+        this.relay = relay;
+        this.notices = new NoticeCoalescer(this, executor, config.relay.noticeWindow);
+        RecipientCache recipients = new RecipientCache(this, config.relay.recipientRefresh);
+        recipients.start();
+        this.recipients = recipients;
+        PlayerRoster roster = new PlayerRoster(this, config.rosterRefresh, config.rosterPageLength);
+        roster.start();
+        this.roster = roster;
+        InboundBuffer inbound = new InboundBuffer(this, config.relay);
+        inbound.start();
+        this.inbound = inbound;
+    }
+
+    private void startMetricsServer() {
+        metricsServer.stop();
+        if (config.metrics.httpEnabled) {
+            try {
+                metricsServer.start(config.metrics);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Unable to start metrics endpoint on " + config.metrics.httpAddress
+                        + ":" + config.metrics.httpPort + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Expose state that is already tracked elsewhere as gauges
+     */
+    private void registerGauges() {
+        metrics.gauge("relay.queue-depth", new Gauge() {
+            @Override
+            public long getValue() {
+                RelayWorker relay = NarwhalIRCPlugin.this.relay;
+                return relay == null ? 0 : relay.getQueueDepth();
+            }
+        });
+        metrics.gauge("relay.submitted", new Gauge() {
+            @Override
+            public long getValue() {
+                RelayWorker relay = NarwhalIRCPlugin.this.relay;
+                return relay == null ? 0 : relay.getStats().getSubmitted().get();
+            }
+        });
+        metrics.gauge("relay.dropped", new Gauge() {
+            @Override
+            public long getValue() {
+                RelayWorker relay = NarwhalIRCPlugin.this.relay;
+                return relay == null ? 0 : relay.getStats().getDropped().get();
+            }
+        });
+        metrics.gauge("relay.coalesced", new Gauge() {
+            @Override
+            public long getValue() {
+                RelayWorker relay = NarwhalIRCPlugin.this.relay;
+                return relay == null ? 0 : relay.getStats().getCoalesced().get();
+            }
+        });
+        metrics.gauge("inbound.backlog", new Gauge() {
+            @Override
+            public long getValue() {
+                InboundBuffer inbound = NarwhalIRCPlugin.this.inbound;
+                return inbound == null ? 0 : inbound.getBacklog();
+            }
+        });
+        metrics.gauge("dedup.hits", new Gauge() {
+            @Override
+            public long getValue() {
+                return dedup.getHits();
+            }
+        });
+        metrics.gauge("dedup.misses", new Gauge() {
+            @Override
+            public long getValue() {
+                return dedup.getMisses();
+            }
+        });
+        metrics.gauge("dedup.size", new Gauge() {
+            @Override
+            public long getValue() {
+                return dedup.size();
+            }
+        });
+        for (final OutboundPriority priority : OutboundPriority.values()) {
+            metrics.gauge("outbound.queue-depth." + priority.name().toLowerCase(), new Gauge() {
+                @Override
+                public long getValue() {
+                    long depth = 0;
+                    for (BotSession bot : bots.values()) {
+                        depth += bot.getOutbound().getQueueDepth(priority);
+                    }
+                    return depth;
+                }
+            });
+        }
+        metrics.gauge("outbound.dropped", new Gauge() {
+            @Override
+            public long getValue() {
+                long dropped = 0;
+                for (BotSession bot : bots.values()) {
+                    dropped += bot.getOutbound().getDropped();
+                }
+                return dropped;
+            }
+        });
+        metrics.gauge("dispatch.dropped-events", new Gauge() {
+            @Override
+            public long getValue() {
+                long dropped = 0;
+                for (BotSession bot : bots.values()) {
+                    dropped += bot.getDispatcher().getDroppedEvents();
+                }
+                return dropped;
+            }
+        });
+        metrics.gauge("dispatch.rejected-commands", new Gauge() {
+            @Override
+            public long getValue() {
+                long rejected = 0;
+                for (BotSession bot : bots.values()) {
+                    rejected += bot.getDispatcher().getRejectedCommands();
+                }
+                return rejected;
+            }
+        });
+        metrics.gauge("bots.joined", new Gauge() {
+            @Override
+            public long getValue() {
+                long joined = 0;
+                for (BotSession bot : bots.values()) {
+                    if (bot.getState() == SessionState.JOINED) {
+                        ++joined;
+                    }
+                }
+                return joined;
+            }
+        });
+    }
+
+    private void stopRelay() {
+        InboundBuffer inbound = this.inbound;
+        if (inbound != null) {
+            inbound.stop();
+            this.inbound = null;
+        }
+        recipients.stop();
+        roster.stop();
+        NoticeCoalescer notices = this.notices;
+        if (notices != null) {
+            notices.flush();
+            this.notices = null;
+        }
+        RelayWorker relay = this.relay;
+        if (relay != null) {
+            relay.shutdown(1000);
+            this.relay = null;
+        }
+    }
+
     /**
      * Broadcast a message to all bots that receive the given {@link PassedEvent}
      *
@@ -173,13 +522,82 @@ public class NarwhalIRCPlugin {
      * @param message The message to broadcast
      */
     public void broadcastBotMessage(PassedEvent type, ChatArguments message) {
-        for (BotSession bot : bots.values()) {
-            for (ChannelCommandSource chan : bot.getChannels()) {
-                if (chan.receivesEvent(type)) {
-                    chan.sendMessage(message);
-                }
-            }
+        final OutboundPriority priority = type == PassedEvent.MESSAGE || type == PassedEvent.ACTION
+                ? OutboundPriority.CHAT : OutboundPriority.NOTICE;
+        for (ChannelCommandSource chan : routes.getReceivers(type)) {
+            chan.sendMessage(message, priority);
+        }
+    }
+
+    /**
+     * @param type The type of event
+     * @return The number of bytes of message text that fit in one line to every channel receiving the event
+     */
+    public int getLineBudget(PassedEvent type) {
+        int budget = LineSplitter.MAX_LINE_BYTES;
+        for (ChannelCommandSource chan : routes.getReceivers(type)) {
+            budget = Math.min(budget, chan.getLineBudget());
         }
+        return budget;
+    }
+
+    /**
+     * Show a message from IRC to players with {@link #IRC_BROADCAST_PERMISSION}. Lines are buffered
+     * and delivered on the next server tick, so this is safe to call from any thread.
+     *
+     * @param message The message
+     */
+    public void broadcastServerMessage(ChatArguments message) {
+        InboundBuffer inbound = this.inbound;
+        if (inbound != null) {
+            inbound.add(message);
+        }
+    }
+
+    /**
+     * Rebuild the routing table from the current bots and channels. Called whenever they change.
+     */
+    public synchronized void rebuildRoutes() {
+        routes = RoutingTable.build(bots.values());
+    }
+
+    public RoutingTable getRoutes() {
+        return routes;
+    }
+
+    public RelayWorker getRelay() {
+        return relay;
+    }
+
+    /**
+     * @return The cache of messages channels should not send again
+     */
+    public DedupCache getDedup() {
+        return dedup;
+    }
+
+    public PlayerRoster getRoster() {
+        return roster;
+    }
+
+    public CommandRateLimiter getCommandLimiter() {
+        return commandLimiter;
+    }
+
+    public RecipientCache getRecipients() {
+        return recipients;
+    }
+
+    public NoticeCoalescer getNotices() {
+        return notices;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public ScheduledExecutorService getExecutor() {
+        return executor;
     }
 
     public RootCommand getBotCommands() {
@@ -190,6 +608,10 @@ public class NarwhalIRCPlugin {
         return config.commandPrefix;
     }
 
+    public CommandIndex<Command> getCommandIndex() {
+        return commandIndex;
+    }
+
     public boolean doesDebugLog() {
         return config.debugLog;
     }
@@ -18,47 +18,43 @@
 package ninja.leaping.narwhalirc;
 
 import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.metrics.Histogram;
+import ninja.leaping.narwhalirc.metrics.MetricsRegistry;
+import ninja.leaping.narwhalirc.metrics.StripedCounter;
+import ninja.leaping.narwhalirc.relay.ChatSnapshot;
+import ninja.leaping.narwhalirc.relay.NoticeCoalescer;
+import ninja.leaping.narwhalirc.relay.RelayWorker;
+import ninja.leaping.narwhalirc.util.DedupCache;
 import org.spongepowered.api.event.entity.living.player.PlayerChatEvent;
 import org.spongepowered.api.event.entity.living.player.PlayerJoinEvent;
 import org.spongepowered.api.event.entity.living.player.PlayerQuitEvent;
 import org.spongepowered.api.util.event.Order;
 import org.spongepowered.api.util.event.Subscribe;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class NarwhalServerListener {
-    private static final Map<String, Integer> dupeMessages = new HashMap<String, Integer>();
     private final NarwhalIRCPlugin plugin;
+    private final StripedCounter chats, joins, quits;
+    private final Histogram submitTime;
 
     public NarwhalServerListener(NarwhalIRCPlugin plugin) {
         this.plugin = plugin;
+        MetricsRegistry metrics = plugin.getMetrics();
+        this.chats = metrics.counter("server.chat");
+        this.joins = metrics.counter("server.join");
+        this.quits = metrics.counter("server.quit");
+        this.submitTime = metrics.histogram("server.chat.submit-time");
     }
 
-    public static boolean checkDupeMessage(String message) {
-        Integer val = dupeMessages.get(message);
-        if (val == null) {
-            return true;
-        } else if (val == 0) {
-            dupeMessages.remove(message);
-            return true;
-        } else {
-            dupeMessages.put(message, --val);
-            return false;
-        }
-    }
-
+    /**
+     * Mark a message as already relayed, so channels drop it if the server echoes it back to them
+     *
+     * @param message The message, rendered with IRC formatting
+     */
     private void addDupeMessage(String message) {
-        int chanCount = 0;
-        for (BotSession bot : plugin.getBots()) {
-            /*for (ChannelCommandSource channel : bot.getChannels()) {
-                if (channel.receivesEvent(event)) {
-                    ++chanCount;
-                }
-            }*/
-            chanCount += bot.getChannels().size();
+        DedupCache dedup = plugin.getDedup();
+        for (ChannelCommandSource channel : plugin.getRoutes().getChannels()) {
+            dedup.add(message, channel.getName());
         }
-        dupeMessages.put(message, chanCount);
     }
 
     @Subscribe(order = Order.MONITOR)
@@ -67,42 +63,48 @@ public class NarwhalServerListener {
             return;
         }
 
-        for (BotSession bot : plugin.getBots()) {
-            for (ChannelCommandSource chan : bot.getChannels()) {
-                if (chan.receivesEvent(PassedEvent.MESSAGE)) {
-                    ChatArguments args = chan.getServerToIrcFormat().getArguments();
-                    if (args.hasPlaceholder(ChannelCommandSource.EVENT)) args.setPlaceHolder(ChannelCommandSource.EVENT,
-                            event.getFormat().getArguments()
-                                    .setPlaceHolder(PlayerChatEvent.NAME, new ChatArguments(event.getPlayer().getDisplayName()))
-                                    .setPlaceHolder(PlayerChatEvent.MESSAGE, event.getMessage()));
-                    if (args.hasPlaceholder(ChannelCommandSource.NAME)) args.setPlaceHolder(ChannelCommandSource.NAME, new ChatArguments(event.getPlayer().getDisplayName()));
-                    if (args.hasPlaceholder(ChannelCommandSource.MESSAGE)) args.setPlaceHolder(ChannelCommandSource.MESSAGE, event.getMessage());
-                    chan.sendMessage(args);
-                }
-            }
+        chats.increment();
+        final long start = System.nanoTime();
+        RelayWorker relay = plugin.getRelay();
+        if (relay != null) {
+            relay.submit(ChatSnapshot.of(event));
         }
+        submitTime.record(System.nanoTime() - start);
     }
 
     @Subscribe(order = Order.MONITOR)
     public void onJoin(PlayerJoinEvent event) {
+        plugin.getRecipients().add(event.getPlayer());
+        plugin.getRoster().add(event.getPlayer());
         if (event.getMessage() == null) {
             return;
         }
-        addDupeMessage(new ChatArguments(event.getMessage()).asString(IrcStyleHandler.ID));
-        ChatArguments items = new ChatArguments();
-        items.append("[").append(event.getMessage()).append(ChatStyle.RESET).append("]");
-        plugin.broadcastBotMessage(PassedEvent.JOIN, items);
+        joins.increment();
+        ChatArguments message = new ChatArguments(event.getMessage());
+        addDupeMessage(message.asString(IrcStyleHandler.ID));
+        NoticeCoalescer notices = plugin.getNotices();
+        if (notices != null) {
+            notices.add(PassedEvent.JOIN, event.getPlayer().getName(), message);
+        }
     }
 
     @Subscribe(order = Order.POST)
     public void onQuit(PlayerQuitEvent event) {
-        if (event.isCancelled() || event.getMessage() == null) {
+        if (event.isCancelled()) {
             return;
         }
+        plugin.getRecipients().remove(event.getPlayer());
+        plugin.getRoster().remove(event.getPlayer());
+        if (event.getMessage() == null) {
+            return;
+        }
+        quits.increment();
         final PassedEvent passedEvent = event instanceof PlayerKickEvent ? PassedEvent.KICK : PassedEvent.QUIT;
-        addDupeMessage(new ChatArguments(event.getMessage()).asString(IrcStyleHandler.ID));
-        ChatArguments items = new ChatArguments();
-        items.append("[").append(event.getMessage()).append(ChatStyle.RESET).append("]");
-        plugin.broadcastBotMessage(passedEvent, items);
+        ChatArguments message = new ChatArguments(event.getMessage());
+        addDupeMessage(message.asString(IrcStyleHandler.ID));
+        NoticeCoalescer notices = plugin.getNotices();
+        if (notices != null) {
+            notices.add(passedEvent, event.getPlayer().getName(), message);
+        }
     }
 }
@@ -0,0 +1,206 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc;
+
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.util.NameIndex;
+import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The online players, for the players bot command. Players are added and removed as they join and
+ * quit, and the list is split into pages that each fit on one IRC line. Pages are rendered on the
+ * server thread whenever the roster changes and then shared, so bot commands read them without
+ * locking or rendering. Display names can change without any event we can listen for, so the roster
+ * is also rebuilt on a fixed period.
+ */
+public class PlayerRoster implements Runnable {
+    private static final String SEPARATOR = ", ";
+    private static final List<ChatArguments> EMPTY_PAGES = Collections.singletonList(new ChatArguments("No players online."));
+    private final NarwhalIRCPlugin plugin;
+    private final long refreshPeriod;
+    private final int pageLength;
+    /**
+     * Display names and their rendered length, by lowercased name
+     */
+    private final Map<String, Entry> players = new TreeMap<String, Entry>();
+    /**
+     * The online players by name and display name, for matching names given in commands
+     */
+    private final NameIndex<Player> names = new NameIndex<Player>();
+    private int maxPlayers;
+    private volatile List<ChatArguments> pages = EMPTY_PAGES;
+    private Task task;
+
+    private static class Entry {
+        private final String displayName;
+        private final int length;
+
+        private Entry(String displayName) {
+            this.displayName = displayName;
+            this.length = NarwhalIRCUtil.utf8Length(new ChatArguments(displayName, ChatStyle.RESET).asString(IrcStyleHandler.ID));
+        }
+    }
+
+    /**
+     * @param plugin The plugin
+     * @param refreshPeriod Milliseconds between full rebuilds
+     * @param pageLength The most bytes of IRC text on one page
+     */
+    public PlayerRoster(NarwhalIRCPlugin plugin, long refreshPeriod, int pageLength) {
+        this.plugin = plugin;
+        this.refreshPeriod = refreshPeriod;
+        this.pageLength = pageLength;
+    }
+
+    public void start() {
+        refresh();
+        if (refreshPeriod > 0) {
+            task = plugin.getEngine().getScheduler().scheduleSyncRepeatingTask(plugin, this, refreshPeriod, refreshPeriod, TaskPriority.LOW);
+        }
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        refresh();
+    }
+
+    /**
+     * Rebuild the roster from every online player. Must be called on the server thread.
+     */
+    public synchronized void refresh() {
+        players.clear();
+        Player[] online = plugin.getServer().getOnlinePlayers();
+        for (Player player : online) {
+            players.put(player.getName().toLowerCase(), new Entry(player.getDisplayName()));
+            index(player);
+        }
+        names.retainAll(Arrays.asList(online));
+        maxPlayers = plugin.getServer().getMaxPlayers();
+        render();
+    }
+
+    /**
+     * Add a player who has just joined. Must be called on the server thread.
+     *
+     * @param player The player
+     */
+    public synchronized void add(Player player) {
+        players.put(player.getName().toLowerCase(), new Entry(player.getDisplayName()));
+        index(player);
+        render();
+    }
+
+    private void index(Player player) {
+        names.add(player, player.getName(), player.getName(), new ChatArguments(player.getDisplayName()).getPlainString());
+    }
+
+    /**
+     * Remove a player who is leaving. Must be called on the server thread.
+     *
+     * @param player The player
+     */
+    public synchronized void remove(Player player) {
+        names.remove(player);
+        if (players.remove(player.getName().toLowerCase()) != null) {
+            render();
+        }
+    }
+
+    /**
+     * @return The online players by name and display name
+     */
+    public NameIndex<Player> getNames() {
+        return names;
+    }
+
+    /**
+     * @return The pages of the roster, at least one. The list and its messages must not be modified.
+     */
+    public List<ChatArguments> getPages() {
+        return pages;
+    }
+
+    /**
+     * Split the roster into pages and publish them
+     */
+    private void render() {
+        if (players.isEmpty()) {
+            pages = EMPTY_PAGES;
+            return;
+        }
+        // There are never more pages than players, so this is the longest header any page could have
+        final int budget = Math.max(1, pageLength - header(players.size(), players.size()).length());
+        List<List<String>> split = new ArrayList<List<String>>();
+        List<String> page = new ArrayList<String>();
+        int length = 0;
+        for (Entry entry : players.values()) {
+            int added = page.isEmpty() ? entry.length : SEPARATOR.length() + entry.length;
+            if (!page.isEmpty() && length + added > budget) {
+                split.add(page);
+                page = new ArrayList<String>();
+                added = entry.length;
+                length = 0;
+            }
+            page.add(entry.displayName);
+            length += added;
+        }
+        split.add(page);
+
+        List<ChatArguments> rendered = new ArrayList<ChatArguments>(split.size());
+        for (int i = 0; i < split.size(); ++i) {
+            ChatArguments build = new ChatArguments(split.size() == 1 ? header(0, 0) : header(i + 1, split.size()));
+            boolean first = true;
+            for (String displayName : split.get(i)) {
+                if (!first) {
+                    build.append(SEPARATOR);
+                }
+                first = false;
+                build.append(displayName).append(ChatStyle.RESET);
+            }
+            rendered.add(build);
+        }
+        pages = Collections.unmodifiableList(rendered);
+    }
+
+    /**
+     * @param page The page number, or 0 when there is only one page
+     * @param pageCount The number of pages
+     * @return The text starting the page
+     */
+    private String header(int page, int pageCount) {
+        StringBuilder header = new StringBuilder("Online players: (").append(players.size()).append("/").append(maxPlayers).append(")");
+        if (page > 0) {
+            header.append(" [page ").append(page).append("/").append(pageCount).append("]");
+        }
+        return header.append(": ").toString();
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
+
+/**
+ * Per-network settings for reconnecting and detecting dead connections
+ */
+@ConfigSerializable
+public class ReconnectConfiguration {
+    @Setting("enabled") public boolean enabled = true;
+    /**
+     * Milliseconds the backoff starts from. Each consecutive failure doubles it.
+     */
+    @Setting("initial-delay") public long initialDelay = 1000;
+    @Setting("max-delay") public long maxDelay = 300000;
+    /**
+     * Consecutive failures after which the circuit breaker opens
+     */
+    @Setting("max-failures") public int maxFailures = 10;
+    /**
+     * Milliseconds to wait once the circuit breaker is open before trying again
+     */
+    @Setting("circuit-cooldown") public long circuitCooldown = 1800000;
+    /**
+     * Milliseconds without hearing from the server before we send a PING
+     */
+    @Setting("ping-interval") public long pingInterval = 60000;
+    /**
+     * Milliseconds without hearing from the server before the connection is considered dead
+     */
+    @Setting("ping-timeout") public long pingTimeout = 180000;
+}
@@ -0,0 +1,89 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable snapshot of which channels receive each {@link PassedEvent}, across every bot.
+ * A new table is built whenever channels or bots change and published in place of the old one,
+ * so fanning an event out is a scan of one array.
+ */
+public final class RoutingTable {
+    private static final ChannelCommandSource[] NO_CHANNELS = new ChannelCommandSource[0];
+    public static final RoutingTable EMPTY = new RoutingTable(NO_CHANNELS, new ChannelCommandSource[PassedEvent.values().length][]);
+    private final ChannelCommandSource[] channels;
+    private final ChannelCommandSource[][] receivers;
+
+    private RoutingTable(ChannelCommandSource[] channels, ChannelCommandSource[][] receivers) {
+        this.channels = channels;
+        this.receivers = receivers;
+        for (int i = 0; i < receivers.length; ++i) {
+            if (receivers[i] == null) {
+                receivers[i] = NO_CHANNELS;
+            }
+        }
+    }
+
+    /**
+     * Build a table from the channels bots currently have
+     *
+     * @param bots The bots
+     * @return The new table
+     */
+    public static RoutingTable build(Collection<BotSession> bots) {
+        List<ChannelCommandSource> all = new ArrayList<ChannelCommandSource>();
+        for (BotSession bot : bots) {
+            all.addAll(bot.getChannels());
+        }
+        if (all.isEmpty()) {
+            return EMPTY;
+        }
+
+        final PassedEvent[] events = PassedEvent.values();
+        ChannelCommandSource[][] receivers = new ChannelCommandSource[events.length][];
+        List<ChannelCommandSource> matching = new ArrayList<ChannelCommandSource>(all.size());
+        for (PassedEvent event : events) {
+            matching.clear();
+            for (ChannelCommandSource channel : all) {
+                if (channel.receivesEvent(event)) {
+                    matching.add(channel);
+                }
+            }
+            receivers[event.ordinal()] = matching.toArray(new ChannelCommandSource[matching.size()]);
+        }
+        return new RoutingTable(all.toArray(new ChannelCommandSource[all.size()]), receivers);
+    }
+
+    /**
+     * @param event The event
+     * @return The channels that receive the event. The array must not be modified.
+     */
+    public ChannelCommandSource[] getReceivers(PassedEvent event) {
+        return receivers[event.ordinal()];
+    }
+
+    /**
+     * @return Every channel of every bot. The array must not be modified.
+     */
+    public ChannelCommandSource[] getChannels() {
+        return channels;
+    }
+}
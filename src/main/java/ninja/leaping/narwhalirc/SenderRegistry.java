@@ -0,0 +1,194 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc;
+
+import org.pircbotx.Channel;
+import org.pircbotx.User;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link BotCommandSource}s of one {@link BotSession}, indexed by user and by nick.
+ * Sources are keyed on the PircBotX {@link User}, which survives nick changes, so a nick
+ * change only re-keys the nick index and a quit drops all of a user's sources at once.
+ * The nick index is always cleaned up by the nick a user was indexed under, since PircBotX
+ * may already have updated {@link User#getNick()} by the time a quit or nick change is handled.
+ * Safe for use from any thread.
+ */
+public class SenderRegistry {
+    /**
+     * The channel key used for sources outside any channel, such as private messages
+     */
+    private static final String NO_CHANNEL = "";
+    private final ConcurrentMap<User, ConcurrentMap<String, Entry>> byUser = new ConcurrentHashMap<User, ConcurrentMap<String, Entry>>();
+    private final ConcurrentMap<String, User> byNick = new ConcurrentHashMap<String, User>();
+    /**
+     * The nick each user is indexed under in {@link #byNick}
+     */
+    private final ConcurrentMap<User, String> nicks = new ConcurrentHashMap<User, String>();
+
+    private static class Entry {
+        private final BotCommandSource source;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Entry(BotCommandSource source) {
+            this.source = source;
+        }
+    }
+
+    private static String channelKey(Channel channel) {
+        return channel == null ? NO_CHANNEL : channel.getName();
+    }
+
+    /**
+     * @param user The user
+     * @param channel The channel, or null for a source outside any channel
+     * @return The registered source, or null if there is none
+     */
+    public BotCommandSource get(User user, Channel channel) {
+        Map<String, Entry> inUser = byUser.get(user);
+        if (inUser == null) {
+            return null;
+        }
+        Entry entry = inUser.get(channelKey(channel));
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsed = System.nanoTime();
+        return entry.source;
+    }
+
+    /**
+     * Register a source unless one already exists for its user and channel
+     *
+     * @param source The source to register
+     * @return The source now registered, which is the existing one if there was one
+     */
+    public BotCommandSource putIfAbsent(BotCommandSource source) {
+        final User user = source.getUser();
+        ConcurrentMap<String, Entry> inUser = byUser.get(user);
+        if (inUser == null) {
+            ConcurrentMap<String, Entry> created = new ConcurrentHashMap<String, Entry>(4);
+            inUser = byUser.putIfAbsent(user, created);
+            if (inUser == null) {
+                inUser = created;
+            }
+        }
+        indexNick(user, user.getNick());
+        Entry existing = inUser.putIfAbsent(channelKey(source.getChannel()), new Entry(source));
+        return existing == null ? source : existing.source;
+    }
+
+    private void indexNick(User user, String nick) {
+        String previous = nicks.put(user, nick);
+        if (previous != null && !previous.equals(nick)) {
+            byNick.remove(previous, user);
+        }
+        byNick.put(nick, user);
+    }
+
+    private void unindexNick(User user) {
+        String nick = nicks.remove(user);
+        if (nick != null) {
+            byNick.remove(nick, user);
+        }
+    }
+
+    /**
+     * @param nick A nick
+     * @return The user last registered with the nick, or null
+     */
+    public User getUser(String nick) {
+        return byNick.get(nick);
+    }
+
+    public void remove(User user, Channel channel) {
+        Map<String, Entry> inUser = byUser.get(user);
+        if (inUser != null) {
+            inUser.remove(channelKey(channel));
+            if (inUser.isEmpty()) {
+                remove(user);
+            }
+        }
+    }
+
+    /**
+     * Remove every source belonging to a user
+     *
+     * @param user The user
+     */
+    public void remove(User user) {
+        byUser.remove(user);
+        unindexNick(user);
+    }
+
+    /**
+     * Re-key a user after a nick change. Their sources are kept.
+     *
+     * @param user The user
+     * @param oldNick The nick the user had
+     * @param newNick The nick the user has now
+     */
+    public void rename(User user, String oldNick, String newNick) {
+        if (byUser.containsKey(user)) {
+            byNick.remove(oldNick, user);
+            indexNick(user, newNick);
+        }
+    }
+
+    /**
+     * Remove sources that have not been used recently
+     *
+     * @param idleNanos How long a source may go unused
+     * @return The number of sources removed
+     */
+    public int evictIdle(long idleNanos) {
+        final long now = System.nanoTime();
+        int removed = 0;
+        for (Iterator<Map.Entry<User, ConcurrentMap<String, Entry>>> users = byUser.entrySet().iterator(); users.hasNext();) {
+            Map.Entry<User, ConcurrentMap<String, Entry>> user = users.next();
+            for (Iterator<Entry> it = user.getValue().values().iterator(); it.hasNext();) {
+                if (now - it.next().lastUsed > idleNanos) {
+                    it.remove();
+                    ++removed;
+                }
+            }
+            if (user.getValue().isEmpty()) {
+                users.remove();
+                unindexNick(user.getKey());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return The number of users with registered sources
+     */
+    public int size() {
+        return byUser.size();
+    }
+
+    public void clear() {
+        byUser.clear();
+        byNick.clear();
+        nicks.clear();
+    }
+}
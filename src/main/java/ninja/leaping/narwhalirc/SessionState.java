@@ -0,0 +1,48 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc;
+
+/**
+ * The stages a {@link BotSession}'s connection moves through, as tracked by its {@link SessionSupervisor}
+ */
+public enum SessionState {
+    /**
+     * Connecting to the server and registering
+     */
+    CONNECTING,
+    /**
+     * Registered with the server, joining channels
+     */
+    REGISTERED,
+    /**
+     * Registered and in every configured channel
+     */
+    JOINED,
+    /**
+     * Waiting before the next connection attempt
+     */
+    BACKOFF,
+    /**
+     * Too many attempts have failed in a row, waiting out the circuit breaker's cooldown
+     */
+    CIRCUIT_OPEN,
+    /**
+     * The session has been shut down and will not reconnect
+     */
+    STOPPED,
+}
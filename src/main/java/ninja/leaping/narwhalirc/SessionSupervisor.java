@@ -0,0 +1,208 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a {@link BotSession} connected. Runs the session's connection on the calling thread and,
+ * whenever it ends, reconnects after an exponential backoff with full jitter. After too many
+ * failures in a row the circuit breaker opens and attempts pause for a cooldown.
+ * While registered, a watchdog pings the server when it goes quiet and drops connections that
+ * stop answering, so half-open sockets are noticed.
+ */
+public class SessionSupervisor implements Runnable {
+    private final BotSession session;
+    private final ReconnectConfiguration config;
+    private final ScheduledExecutorService executor;
+    private final Logger logger;
+    private final Random random = new Random();
+    private final Object lock = new Object();
+    private volatile SessionState state = SessionState.CONNECTING;
+    private volatile boolean stopped;
+    private volatile long lastInboundNanos = System.nanoTime();
+    private volatile boolean pingSent;
+    private ScheduledFuture<?> watchdog;
+    private volatile int failures;
+
+    public SessionSupervisor(BotSession session, ReconnectConfiguration config, ScheduledExecutorService executor, Logger logger) {
+        this.session = session;
+        this.config = config;
+        this.executor = executor;
+        this.logger = logger;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            state = SessionState.CONNECTING;
+            boolean registered = session.connect();
+            stopWatchdog();
+            if (stopped || !config.enabled) {
+                break;
+            }
+
+            long delay;
+            if (registered) {
+                failures = 0;
+                delay = backoffDelay(0);
+                state = SessionState.BACKOFF;
+                logger.warning("Lost connection to " + session.getServer() + ", reconnecting in " + delay + " ms");
+            } else if (++failures >= config.maxFailures) {
+                failures = config.maxFailures - 1; // Half-open: one more failure reopens the circuit
+                delay = config.circuitCooldown;
+                state = SessionState.CIRCUIT_OPEN;
+                logger.severe("Giving up on " + session.getServer() + " for " + delay + " ms after "
+                        + config.maxFailures + " failed connection attempts");
+            } else {
+                delay = backoffDelay(failures);
+                state = SessionState.BACKOFF;
+                logger.warning("Could not connect to " + session.getServer() + ", retrying in " + delay + " ms");
+            }
+
+            if (!await(delay)) {
+                break;
+            }
+        }
+        state = SessionState.STOPPED;
+    }
+
+    /**
+     * Pick a delay with full jitter: uniformly random between zero and the capped exponential backoff
+     *
+     * @param attempt The number of consecutive failures so far
+     * @return The delay in milliseconds
+     */
+    public long backoffDelay(int attempt) {
+        long ceiling = config.initialDelay << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > config.maxDelay) {
+            ceiling = config.maxDelay;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * @return false if the supervisor was stopped while waiting
+     */
+    private boolean await(long millis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (lock) {
+            long remaining;
+            while (!stopped && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !stopped;
+    }
+
+    /**
+     * Stop reconnecting. The current connection is left for the caller to close.
+     */
+    public void stop() {
+        stopped = true;
+        stopWatchdog();
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called once the server has accepted our registration
+     */
+    public void onRegistered() {
+        state = SessionState.REGISTERED;
+        onInbound();
+        startWatchdog();
+    }
+
+    /**
+     * Called once every configured channel has been joined
+     */
+    public void onJoined() {
+        if (state == SessionState.REGISTERED) {
+            state = SessionState.JOINED;
+        }
+    }
+
+    /**
+     * Record that the server sent us something
+     */
+    public void onInbound() {
+        lastInboundNanos = System.nanoTime();
+        pingSent = false;
+    }
+
+    private void startWatchdog() {
+        stopWatchdog();
+        if (config.pingInterval <= 0) {
+            return;
+        }
+        final long period = Math.max(1000, config.pingInterval / 2);
+        synchronized (lock) {
+            watchdog = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkLiveness();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopWatchdog() {
+        synchronized (lock) {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+                watchdog = null;
+            }
+        }
+    }
+
+    private void checkLiveness() {
+        final long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastInboundNanos);
+        if (quiet >= config.pingTimeout) {
+            logger.warning("No response from " + session.getServer() + " in " + quiet + " ms, dropping the connection");
+            stopWatchdog();
+            session.dropConnection();
+        } else if (quiet >= config.pingInterval && !pingSent) {
+            pingSent = true;
+            session.sendPing();
+        }
+    }
+
+    public SessionState getState() {
+        return state;
+    }
+
+    /**
+     * @return The number of consecutive failed connection attempts
+     */
+    public int getFailures() {
+        return failures;
+    }
+}
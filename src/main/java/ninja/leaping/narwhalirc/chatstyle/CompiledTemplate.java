@@ -0,0 +1,183 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.chatstyle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link ChatTemplate} flattened into a program of literal runs and placeholder slots.
+ * Literal runs are rendered to IRC and plain text once, when the template is compiled,
+ * so filling the template only copies strings into a caller-supplied {@link StringBuilder}.
+ */
+public final class CompiledTemplate {
+    private static final int LITERAL = -1;
+    /**
+     * For each segment, the slot it reads from or {@link #LITERAL}
+     */
+    private final int[] program;
+    private final String[] ircLiterals;
+    private final String[] plainLiterals;
+    private final Object[][] literalArguments;
+    private final int usedSlots;
+    private final int argumentCount;
+
+    private CompiledTemplate(int[] program, String[] ircLiterals, String[] plainLiterals, Object[][] literalArguments) {
+        this.program = program;
+        this.ircLiterals = ircLiterals;
+        this.plainLiterals = plainLiterals;
+        this.literalArguments = literalArguments;
+        int usedSlots = 0, argumentCount = 0;
+        for (int i = 0; i < program.length; ++i) {
+            if (program[i] == LITERAL) {
+                argumentCount += literalArguments[i].length;
+            } else {
+                usedSlots |= 1 << program[i];
+                ++argumentCount;
+            }
+        }
+        this.usedSlots = usedSlots;
+        this.argumentCount = argumentCount;
+    }
+
+    /**
+     * Compile a template
+     *
+     * @param template The template to compile
+     * @param slots The placeholders to treat as slots. The index of each placeholder
+     *              in this array is the index of its value when rendering. At most 32 slots are supported.
+     * @return The compiled template
+     */
+    public static CompiledTemplate compile(ChatTemplate template, Placeholder... slots) {
+        if (slots.length > Integer.SIZE) {
+            throw new IllegalArgumentException("Too many slots: " + slots.length);
+        }
+        List<Integer> program = new ArrayList<Integer>();
+        List<Object[]> runs = new ArrayList<Object[]>();
+        List<Object> run = new ArrayList<Object>();
+        for (Object arg : template.getArguments().getArguments()) {
+            int slot = indexOf(slots, arg);
+            if (slot == LITERAL) {
+                run.add(arg);
+            } else {
+                if (!run.isEmpty()) {
+                    program.add(LITERAL);
+                    runs.add(run.toArray());
+                    run.clear();
+                }
+                program.add(slot);
+                runs.add(null);
+            }
+        }
+        if (!run.isEmpty()) {
+            program.add(LITERAL);
+            runs.add(run.toArray());
+        }
+
+        final int length = program.size();
+        int[] compiled = new int[length];
+        String[] irc = new String[length];
+        String[] plain = new String[length];
+        Object[][] arguments = new Object[length][];
+        for (int i = 0; i < length; ++i) {
+            compiled[i] = program.get(i);
+            if (compiled[i] == LITERAL) {
+                ChatArguments literal = new ChatArguments(runs.get(i));
+                irc[i] = literal.asString(IrcStyleHandler.ID);
+                plain[i] = literal.getPlainString();
+                arguments[i] = runs.get(i);
+            }
+        }
+        return new CompiledTemplate(compiled, irc, plain, arguments);
+    }
+
+    private static int indexOf(Placeholder[] slots, Object arg) {
+        if (arg instanceof Placeholder) {
+            for (int i = 0; i < slots.length; ++i) {
+                if (slots[i].equals(arg)) {
+                    return i;
+                }
+            }
+        }
+        return LITERAL;
+    }
+
+    /**
+     * @param slot The slot index
+     * @return Whether rendering this template reads the given slot
+     */
+    public boolean hasSlot(int slot) {
+        return (usedSlots & (1 << slot)) != 0;
+    }
+
+    /**
+     * Render this template with IRC formatting
+     *
+     * @param out The builder to append to
+     * @param values The IRC-formatted value of each slot
+     * @return {@code out}
+     */
+    public StringBuilder renderIrc(StringBuilder out, String[] values) {
+        return render(out, ircLiterals, values);
+    }
+
+    /**
+     * Render this template as plain text
+     *
+     * @param out The builder to append to
+     * @param values The plain text value of each slot
+     * @return {@code out}
+     */
+    public StringBuilder renderPlain(StringBuilder out, String[] values) {
+        return render(out, plainLiterals, values);
+    }
+
+    private StringBuilder render(StringBuilder out, String[] literals, String[] values) {
+        for (int i = 0; i < program.length; ++i) {
+            final int slot = program[i];
+            if (slot == LITERAL) {
+                out.append(literals[i]);
+            } else if (values[slot] != null) {
+                out.append(values[slot]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Fill this template's slots for use as game chat arguments
+     *
+     * @param values The value of each slot
+     * @return The flattened template arguments, suitable for passing to a {@link ChatArguments} constructor
+     */
+    public Object[] fill(Object[] values) {
+        Object[] out = new Object[argumentCount];
+        int index = 0;
+        for (int i = 0; i < program.length; ++i) {
+            final int slot = program[i];
+            if (slot == LITERAL) {
+                Object[] literal = literalArguments[i];
+                System.arraycopy(literal, 0, out, index, literal.length);
+                index += literal.length;
+            } else {
+                out[index++] = values[slot] == null ? "" : values[slot];
+            }
+        }
+        return out;
+    }
+}
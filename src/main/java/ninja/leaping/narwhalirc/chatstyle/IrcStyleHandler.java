@@ -19,17 +19,50 @@ package ninja.leaping.narwhalirc.chatstyle;
 
 import org.pircbotx.Colors;
 
-import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author zml2008
  */
 public class IrcStyleHandler extends StyleHandler {
+    /**
+     * The number of colors in the mIRC palette, including the extended colors 16-98
+     */
+    public static final int COLOR_COUNT = 99;
+    /**
+     * The game colors and their RGB values, for nearest-color matching
+     */
+    private static final ChatStyle[] GAME_COLORS = {ChatStyle.BLACK, ChatStyle.DARK_BLUE, ChatStyle.DARK_GREEN,
+            ChatStyle.DARK_CYAN, ChatStyle.DARK_RED, ChatStyle.PURPLE, ChatStyle.GOLD, ChatStyle.GRAY, ChatStyle.DARK_GRAY,
+            ChatStyle.BLUE, ChatStyle.BRIGHT_GREEN, ChatStyle.CYAN, ChatStyle.RED, ChatStyle.PINK, ChatStyle.YELLOW, ChatStyle.WHITE};
+    private static final int[] GAME_RGB = {0x000000, 0x0000aa, 0x00aa00,
+            0x00aaaa, 0xaa0000, 0xaa00aa, 0xffaa00, 0xaaaaaa, 0x555555,
+            0x5555ff, 0x55ff55, 0x55ffff, 0xff5555, 0xff55ff, 0xffff55, 0xffffff};
+    /**
+     * RGB values of the extended mIRC colors, starting at color 16
+     */
+    private static final int[] EXTENDED_RGB = {
+            0x470000, 0x472100, 0x474700, 0x324700, 0x004700, 0x00472c, 0x004747, 0x002747, 0x000047, 0x2e0047, 0x470047, 0x47002a,
+            0x740000, 0x743a00, 0x747400, 0x517400, 0x007400, 0x007449, 0x007474, 0x004074, 0x000074, 0x4b0074, 0x740074, 0x740045,
+            0xb50000, 0xb56300, 0xb5b500, 0x7db500, 0x00b500, 0x00b571, 0x00b5b5, 0x0063b5, 0x0000b5, 0x7500b5, 0xb500b5, 0xb5006b,
+            0xff0000, 0xff8c00, 0xffff00, 0xb2ff00, 0x00ff00, 0x00ffa0, 0x00ffff, 0x008cff, 0x0000ff, 0xa500ff, 0xff00ff, 0xff0098,
+            0xff5959, 0xffb459, 0xffff71, 0xcfff60, 0x6fff6f, 0x65ffc9, 0x6dffff, 0x59b4ff, 0x5959ff, 0xc459ff, 0xff66ff, 0xff59bc,
+            0xff9c9c, 0xffd39c, 0xffff9c, 0xe2ff9c, 0x9cff9c, 0x9cffdb, 0x9cffff, 0x9cd3ff, 0x9c9cff, 0xdc9cff, 0xff9cff, 0xff94d3,
+            0x000000, 0x131313, 0x282828, 0x363636, 0x4d4d4d, 0x656565, 0x818181, 0x9f9f9f, 0xbcbcbc, 0xe2e2e2, 0xffffff};
+
     public static final IrcStyleHandler INSTANCE = new IrcStyleHandler();
-    public static final String ITALIC_CODE = "\29";
-    private final Map<String, ChatStyle> reverseMapping = new HashMap<String, ChatStyle>();
+    public static final String ITALIC_CODE = "\u001d";
+    /**
+     * The control characters used by IRC clients for formatting
+     */
+    public static final char BOLD_CHAR = '\u0002', COLOR_CHAR = '\u0003', HEX_COLOR_CHAR = '\u0004',
+            RESET_CHAR = '\u000f', REVERSE_CHAR = '\u0016', ITALIC_CHAR = '\u001d', UNDERLINE_CHAR = '\u001f';
+    /**
+     * The game style for each mIRC color index. Both foreground and background codes
+     * index this table, though only foregrounds are applied since game chat has no background.
+     */
+    private final ChatStyle[] colorStyles = new ChatStyle[COLOR_COUNT];
     public static final int ID = register(INSTANCE);
 
     public IrcStyleHandler() {
@@ -53,21 +86,70 @@ public class IrcStyleHandler extends StyleHandler {
         registerFormatter(ChatStyle.RESET, new PrefixStyleFormatter(Colors.NORMAL));
         registerFormatter(ChatStyle.UNDERLINE, new PrefixStyleFormatter(Colors.UNDERLINE));
 
-        reverseMapping.put(Colors.YELLOW, ChatStyle.YELLOW);
-        reverseMapping.put(Colors.OLIVE, ChatStyle.GOLD);
-        reverseMapping.put(Colors.TEAL, ChatStyle.DARK_CYAN);
-        reverseMapping.put(Colors.CYAN, ChatStyle.CYAN);
+        registerColor(Colors.YELLOW, ChatStyle.YELLOW);
+        registerColor(Colors.OLIVE, ChatStyle.GOLD);
+        registerColor(Colors.TEAL, ChatStyle.DARK_CYAN);
+        registerColor(Colors.CYAN, ChatStyle.CYAN);
+
+        for (int i = 0; i < EXTENDED_RGB.length; ++i) {
+            colorStyles[16 + i] = nearestColor(EXTENDED_RGB[i]);
+        }
     }
 
     @Override
     protected void registerFormatter(ChatStyle style, StyleFormatter formatter) {
         if (formatter instanceof PrefixStyleFormatter) {
-            reverseMapping.put(((PrefixStyleFormatter) formatter).getPrefix(), style);
+            registerColor(((PrefixStyleFormatter) formatter).getPrefix(), style);
         }
         super.registerFormatter(style, formatter);
     }
 
-    private static final Pattern IRC_COLOR_PATTERN = Pattern.compile("\u0003(\\d\\d)");
+    /**
+     * Map an IRC color code to a game style for incoming messages
+     *
+     * @param code The color code, a color character followed by two digits. Other codes are ignored.
+     * @param style The style to map to
+     */
+    private void registerColor(String code, ChatStyle style) {
+        if (code.length() == 3 && code.charAt(0) == COLOR_CHAR
+                && isDigit(code.charAt(1)) && isDigit(code.charAt(2))) {
+            int index = (code.charAt(1) - '0') * 10 + code.charAt(2) - '0';
+            if (index < COLOR_COUNT) {
+                colorStyles[index] = style;
+            }
+        }
+    }
+
+    /**
+     * Find the game color closest to an RGB color
+     *
+     * @param rgb The color, as 0xRRGGBB
+     * @return The closest game color
+     */
+    public static ChatStyle nearestColor(int rgb) {
+        final int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < GAME_RGB.length; ++i) {
+            final int dr = r - ((GAME_RGB[i] >> 16) & 0xff);
+            final int dg = g - ((GAME_RGB[i] >> 8) & 0xff);
+            final int db = b - (GAME_RGB[i] & 0xff);
+            final int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return GAME_COLORS[best];
+    }
+
+    /**
+     * @param index A mIRC color index
+     * @return The game style for the color, or null if there is none
+     */
+    public ChatStyle getColorStyle(int index) {
+        return index >= 0 && index < COLOR_COUNT ? colorStyles[index] : null;
+    }
 
     public ChatArguments extractArguments(String message) {
         List<Object> items = new ArrayList<Object>();
@@ -75,37 +157,102 @@ public class IrcStyleHandler extends StyleHandler {
         return new ChatArguments(items);
     }
 
-    private String handleDirectString(List<Object> items, String origStyle, ChatStyle replaceStyle, String message) {
-        int index;
-        while ((index = message.indexOf(origStyle)) != -1) {
-            String section = message.substring(0, index);
-            addItems(items, section);
-            if (index + origStyle.length() == message.length()) {
-                return "";
+    /**
+     * Tokenize a message in a single pass, adding text runs and styles to {@code items}
+     *
+     * @param items The list to add to
+     * @param message The message to tokenize
+     */
+    private void addItems(List<Object> items, String message) {
+        final int length = message.length();
+        int runStart = 0;
+        int i = 0;
+        while (i < length) {
+            final char c = message.charAt(i);
+            final ChatStyle style;
+            int next = i + 1;
+            switch (c) {
+                case BOLD_CHAR:
+                    style = ChatStyle.BOLD;
+                    break;
+                case RESET_CHAR:
+                    style = ChatStyle.RESET;
+                    break;
+                case UNDERLINE_CHAR:
+                    style = ChatStyle.UNDERLINE;
+                    break;
+                case ITALIC_CHAR:
+                    style = ChatStyle.ITALIC;
+                    break;
+                case REVERSE_CHAR:
+                    style = null;
+                    break;
+                case COLOR_CHAR:
+                    int fg = -1;
+                    if (next < length && isDigit(message.charAt(next))) {
+                        fg = message.charAt(next++) - '0';
+                        if (next < length && isDigit(message.charAt(next))) {
+                            fg = fg * 10 + message.charAt(next++) - '0';
+                        }
+                        if (next + 1 < length && message.charAt(next) == ',' && isDigit(message.charAt(next + 1))) {
+                            next += 2;
+                            if (next < length && isDigit(message.charAt(next))) {
+                                ++next;
+                            }
+                        }
+                    }
+                    style = getColorStyle(fg);
+                    break;
+                case HEX_COLOR_CHAR:
+                    int rgb = parseHexColor(message, next);
+                    if (rgb == -1) {
+                        style = null;
+                    } else {
+                        style = nearestColor(rgb);
+                        next += 6;
+                        if (next < length && message.charAt(next) == ',' && parseHexColor(message, next + 1) != -1) {
+                            next += 7;
+                        }
+                    }
+                    break;
+                default:
+                    ++i;
+                    continue;
+            }
+
+            if (runStart < i) {
+                items.add(message.substring(runStart, i));
+            }
+            if (style != null) {
+                items.add(style);
             }
-            items.add(replaceStyle);
-            message = message.substring(index + origStyle.length());
+            i = runStart = next;
+        }
+        if (runStart < length) {
+            items.add(runStart == 0 ? message : message.substring(runStart));
         }
-        return message;
     }
 
-    private void addItems(List<Object> items, String message) {
-        message = handleDirectString(items, Colors.BOLD, ChatStyle.BOLD, message);
-        message = handleDirectString(items, Colors.NORMAL, ChatStyle.RESET, message);
-        message = handleDirectString(items, Colors.UNDERLINE, ChatStyle.UNDERLINE, message);
-        message = handleDirectString(items, ITALIC_CODE, ChatStyle.ITALIC, message);
-
-        Matcher match = IRC_COLOR_PATTERN.matcher(message);
-        while (match.find()) {
-            ChatStyle reverse = reverseMapping.get(match.group(0));
-            String section = message.substring(0, match.start());
-            addItems(items, section);
-            if (reverse != null) {
-                items.add(reverse);
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return The RGB value of the six hex digits at {@code start}, or -1 if there are none
+     */
+    private static int parseHexColor(String message, int start) {
+        if (start + 6 > message.length()) {
+            return -1;
+        }
+        int rgb = 0;
+        for (int i = start; i < start + 6; ++i) {
+            int digit = Character.digit(message.charAt(i), 16);
+            if (digit == -1) {
+                return -1;
             }
-            message = message.substring(match.end());
+            rgb = (rgb << 4) | digit;
         }
-        items.add(message.replace("\03", ""));
+        return rgb;
     }
 
     @Override
@@ -0,0 +1,237 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.dispatch;
+
+import ninja.leaping.narwhalirc.metrics.MetricsRegistry;
+import ninja.leaping.narwhalirc.metrics.StripedCounter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how quickly commands from IRC are run, with one budget for each user on a network and
+ * one for each channel. Each budget is a token bucket kept as a single theoretical arrival time,
+ * so taking from it is one compare-and-set and never locks. Safe for use from any thread.
+ * Eviction retires a full bucket with the same compare-and-set before removing it, so a command
+ * racing with eviction either charges the bucket first or sees it retired and takes a fresh one.
+ */
+public class CommandRateLimiter {
+    private final RateLimitConfiguration config;
+    private final Map<String, Integer> costs = new HashMap<String, Integer>();
+    private final ConcurrentMap<String, Bucket> users = new ConcurrentHashMap<String, Bucket>();
+    private final ConcurrentMap<String, Bucket> channels = new ConcurrentHashMap<String, Bucket>();
+    private final long userRefillNanos, channelRefillNanos;
+    private final StripedCounter userRejected, channelRejected;
+
+    public enum Result {
+        ALLOW,
+        /**
+         * Refused, and the first refusal since the budget last allowed a command
+         */
+        NOTIFY,
+        DROP,
+    }
+
+    private static class Bucket {
+        /**
+         * Stands in for the full time once eviction has retired the bucket
+         */
+        private static final long RETIRED = Long.MIN_VALUE;
+        /**
+         * The time at which the bucket will be full again
+         */
+        private final AtomicLong fullAt;
+        private final AtomicBoolean notified = new AtomicBoolean();
+
+        private Bucket(long now) {
+            this.fullAt = new AtomicLong(now);
+        }
+
+        /**
+         * @param now The current {@link System#nanoTime()}
+         * @param cost The nanoseconds of refill the command costs
+         * @param tolerance The nanoseconds of refill the bucket holds when full
+         * @return Whether the cost was taken. A retired bucket never takes anything.
+         */
+        public boolean tryTake(long now, long cost, long tolerance) {
+            while (true) {
+                long current = fullAt.get();
+                if (current == RETIRED) {
+                    return false;
+                }
+                long next = Math.max(current, now) + cost;
+                if (next - now > tolerance) {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        public void refund(long cost) {
+            while (true) {
+                long current = fullAt.get();
+                if (current == RETIRED || fullAt.compareAndSet(current, current - cost)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Retire the bucket if it is full, after which it takes nothing
+         *
+         * @param now The current {@link System#nanoTime()}
+         * @return Whether this call retired the bucket
+         */
+        public boolean retireIfFull(long now) {
+            while (true) {
+                long current = fullAt.get();
+                if (current == RETIRED || now - current < 0) {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, RETIRED)) {
+                    return true;
+                }
+            }
+        }
+
+        public boolean isRetired() {
+            return fullAt.get() == RETIRED;
+        }
+    }
+
+    public CommandRateLimiter(RateLimitConfiguration config, MetricsRegistry metrics) {
+        this.config = config;
+        for (Map.Entry<String, Integer> entry : config.costs.entrySet()) {
+            costs.put(entry.getKey().toLowerCase(), entry.getValue());
+        }
+        this.userRefillNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.userRefill));
+        this.channelRefillNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.channelRefill));
+        this.userRejected = metrics.counter("commands.rate-limited.user");
+        this.channelRejected = metrics.counter("commands.rate-limited.channel");
+    }
+
+    private static Bucket getBucket(ConcurrentMap<String, Bucket> buckets, String key, long now) {
+        while (true) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                Bucket created = new Bucket(now);
+                bucket = buckets.putIfAbsent(key, created);
+                if (bucket == null) {
+                    return created;
+                }
+            }
+            if (!bucket.isRetired()) {
+                return bucket;
+            }
+            buckets.remove(key, bucket); // Eviction is about to remove it anyway
+        }
+    }
+
+    /**
+     * @param command A command's preferred name
+     * @return The cost of running the command
+     */
+    public int getCost(String command) {
+        Integer cost = command == null ? null : costs.get(command.toLowerCase());
+        return Math.max(0, cost == null ? config.defaultCost : cost);
+    }
+
+    /**
+     * Take the cost of a command from its user's and its channel's budgets
+     *
+     * @param network The network the command came from
+     * @param hostmask The user's login@host
+     * @param channel The channel the command came from, or null for a private message
+     * @param command The command's preferred name
+     * @return Whether the command may run, and if not whether the user should be told
+     */
+    public Result acquire(String network, String hostmask, String channel, String command) {
+        if (!config.enabled) {
+            return Result.ALLOW;
+        }
+        final int cost = getCost(command);
+        if (cost == 0) {
+            return Result.ALLOW;
+        }
+        final long now = System.nanoTime();
+        // A cost above the burst could never be paid, so it takes the whole budget instead
+        final long userCost = Math.min(cost, config.userBurst) * userRefillNanos;
+        Bucket user;
+        boolean taken;
+        do { // Retry with a fresh bucket if eviction retired this one before we charged it
+            user = getBucket(users, network + " " + hostmask, now);
+            taken = user.tryTake(now, userCost, config.userBurst * userRefillNanos);
+        } while (!taken && user.isRetired());
+        if (!taken) {
+            userRejected.increment();
+            return refuse(user);
+        }
+        if (channel != null) {
+            final long channelCost = Math.min(cost, config.channelBurst) * channelRefillNanos;
+            Bucket inChannel;
+            do {
+                inChannel = getBucket(channels, network + " " + channel, now);
+                taken = inChannel.tryTake(now, channelCost, config.channelBurst * channelRefillNanos);
+            } while (!taken && inChannel.isRetired());
+            if (!taken) {
+                user.refund(userCost);
+                channelRejected.increment();
+                return refuse(inChannel);
+            }
+            inChannel.notified.set(false);
+        }
+        user.notified.set(false);
+        return Result.ALLOW;
+    }
+
+    private Result refuse(Bucket bucket) {
+        return config.notify && bucket.notified.compareAndSet(false, true) ? Result.NOTIFY : Result.DROP;
+    }
+
+    /**
+     * Forget budgets that have filled up again, which behave the same as new ones
+     *
+     * @return The number of budgets removed
+     */
+    public int evictIdle() {
+        final long now = System.nanoTime();
+        return evictIdle(users, now) + evictIdle(channels, now);
+    }
+
+    private static int evictIdle(ConcurrentMap<String, Bucket> buckets, long now) {
+        int removed = 0;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            if (entry.getValue().retireIfFull(now)) {
+                buckets.remove(entry.getKey(), entry.getValue());
+                ++removed;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return users.size() + channels.size();
+    }
+}
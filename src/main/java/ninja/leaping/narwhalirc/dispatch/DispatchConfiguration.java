@@ -0,0 +1,42 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.dispatch;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
+
+/**
+ * Per-network settings for handling events from IRC
+ */
+@ConfigSerializable
+public class DispatchConfiguration {
+    @Setting("mode") public DispatchMode mode = DispatchMode.ORDERED;
+    /**
+     * Threads handling events in {@link DispatchMode#ORDERED} mode
+     */
+    @Setting("event-threads") public int eventThreads = 2;
+    /**
+     * The most events waiting for one channel before new ones are dropped
+     */
+    @Setting("channel-queue") public int channelQueue = 1000;
+    @Setting("command-threads") public int commandThreads = 2;
+    /**
+     * The most commands waiting to run before new ones are refused
+     */
+    @Setting("command-queue") public int commandQueue = 32;
+}
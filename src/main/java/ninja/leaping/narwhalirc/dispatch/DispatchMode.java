@@ -0,0 +1,32 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.dispatch;
+
+/**
+ * How events from IRC are handled
+ */
+public enum DispatchMode {
+    /**
+     * On PircBotX's listener thread, one at a time. A slow command holds up everything after it.
+     */
+    INLINE,
+    /**
+     * On a pool, in order for each channel, with commands run separately so they never hold up chat
+     */
+    ORDERED,
+}
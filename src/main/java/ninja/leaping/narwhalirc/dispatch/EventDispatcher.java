@@ -0,0 +1,190 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.dispatch;
+
+import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the handling of events from one IRC connection. In {@link DispatchMode#ORDERED} mode,
+ * events with the same key, usually a channel, run one at a time and in order on a small pool,
+ * while events with different keys run concurrently. Commands run on a separate bounded pool,
+ * so a slow command never delays chat. In {@link DispatchMode#INLINE} mode everything runs
+ * on the calling thread.
+ */
+public class EventDispatcher {
+    /**
+     * The most tasks one key runs before letting other keys have the thread
+     */
+    private static final int BATCH_SIZE = 64;
+    private final DispatchMode mode;
+    private final Logger logger;
+    private final int queueCapacity;
+    private final ExecutorService eventPool;
+    private final ThreadPoolExecutor commandPool;
+    private final ConcurrentMap<String, SerialQueue> queues = new ConcurrentHashMap<String, SerialQueue>();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong rejectedCommands = new AtomicLong();
+
+    /**
+     * Tasks for one key, run in order by at most one pool thread at a time
+     */
+    private class SerialQueue implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        public boolean add(Runnable task) {
+            if (size.incrementAndGet() > queueCapacity) {
+                size.decrementAndGet();
+                droppedEvents.incrementAndGet();
+                return false;
+            }
+            tasks.add(task);
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    eventPool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false); // Shut down
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            for (int i = 0; i < BATCH_SIZE && (task = tasks.poll()) != null; ++i) {
+                size.decrementAndGet();
+                runSafely(task);
+            }
+            scheduled.set(false);
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    public EventDispatcher(String name, DispatchConfiguration config, Logger logger) {
+        this.mode = config.mode;
+        this.logger = logger;
+        this.queueCapacity = Math.max(1, config.channelQueue);
+        if (mode == DispatchMode.ORDERED) {
+            final int eventThreads = Math.max(1, config.eventThreads);
+            final int commandThreads = Math.max(1, config.commandThreads);
+            eventPool = new ThreadPoolExecutor(eventThreads, eventThreads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), NarwhalIRCUtil.daemonThreadFactory("NarwhalIRC-Events-" + name));
+            commandPool = new ThreadPoolExecutor(commandThreads, commandThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, config.commandQueue)),
+                    NarwhalIRCUtil.daemonThreadFactory("NarwhalIRC-Commands-" + name));
+        } else {
+            eventPool = null;
+            commandPool = null;
+        }
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "Error handling IRC event", t);
+        }
+    }
+
+    /**
+     * Handle an event after every earlier event with the same key
+     *
+     * @param key What the event must be ordered with, such as its channel's name
+     * @param task The handler
+     * @return false if too many events are already waiting for the key and this one was dropped
+     */
+    public boolean execute(String key, Runnable task) {
+        if (mode == DispatchMode.INLINE) {
+            runSafely(task);
+            return true;
+        }
+        SerialQueue queue = queues.get(key);
+        if (queue == null) {
+            SerialQueue created = new SerialQueue();
+            queue = queues.putIfAbsent(key, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue.add(task);
+    }
+
+    /**
+     * Run a command, concurrently with other commands and events
+     *
+     * @param task The command
+     * @return false if too many commands are already waiting and this one was refused
+     */
+    public boolean executeCommand(Runnable task) {
+        if (mode == DispatchMode.INLINE) {
+            runSafely(task);
+            return true;
+        }
+        try {
+            commandPool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCommands.incrementAndGet();
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        if (eventPool != null) {
+            eventPool.shutdown();
+            commandPool.shutdown();
+        }
+        queues.clear();
+    }
+
+    public DispatchMode getMode() {
+        return mode;
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public long getRejectedCommands() {
+        return rejectedCommands.get();
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.dispatch;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings for limiting how quickly commands from IRC are run
+ */
+@ConfigSerializable
+public class RateLimitConfiguration {
+    @Setting("enabled") public boolean enabled = true;
+    /**
+     * The cost one user may spend on commands back to back
+     */
+    @Setting("user-burst") public int userBurst = 5;
+    /**
+     * Milliseconds it takes a user to earn back one unit of cost
+     */
+    @Setting("user-refill") public long userRefill = 3000;
+    /**
+     * The cost all users in a channel may spend on commands back to back
+     */
+    @Setting("channel-burst") public int channelBurst = 10;
+    @Setting("channel-refill") public long channelRefill = 1000;
+    /**
+     * Whether to tell a user once when their commands start being refused, instead of refusing them silently
+     */
+    @Setting("notify") public boolean notify = true;
+    @Setting("default-cost") public int defaultCost = 1;
+    /**
+     * The cost of particular commands, by their preferred name
+     */
+    @Setting("costs") public Map<String, Integer> costs = createDefaultCosts();
+
+    private static Map<String, Integer> createDefaultCosts() {
+        Map<String, Integer> costs = new HashMap<String, Integer>();
+        costs.put("players", 2);
+        costs.put("exec", 3);
+        return costs;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with one bucket per power of two nanoseconds.
+ * Percentiles are accurate to within a factor of two, which is enough to tell
+ * microseconds from milliseconds from seconds.
+ */
+public class Histogram {
+    private static final int BUCKETS = 64;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos A duration in nanoseconds. Negative durations are counted as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.getAndIncrement(BUCKETS - Long.numberOfLeadingZeros(nanos)); // Bucket i holds [2^(i-1), 2^i)
+        count.increment();
+        total.add(nanos);
+        long previous;
+        while (nanos > (previous = max.get())) {
+            if (max.compareAndSet(previous, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The sum of every recorded duration, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return total.sum();
+    }
+
+    public long getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : total.sum() / count;
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile The quantile, between 0 and 1
+     * @return An upper bound on the value at the quantile, in nanoseconds
+     */
+    public long getPercentileNanos(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count), seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + TimeUnit.NANOSECONDS.toMicros(getMeanNanos())
+                + "us p99<=" + TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(0.99))
+                + "us max=" + TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + "us";
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.metrics;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
+
+/**
+ * Settings for exposing metrics over HTTP
+ */
+@ConfigSerializable
+public class MetricsConfiguration {
+    @Setting("http-enabled") public boolean httpEnabled = false;
+    /**
+     * The address the endpoint listens on. Only local by default, as metrics are not authenticated.
+     */
+    @Setting("http-address") public String httpAddress = "127.0.0.1";
+    @Setting("http-port") public int httpPort = 9225;
+}
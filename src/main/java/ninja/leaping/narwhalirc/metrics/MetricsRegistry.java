@@ -0,0 +1,136 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named counters, histograms and gauges for the whole bridge. Look metrics up once and keep the
+ * reference; recording to one never takes a lock.
+ * Names are dotted, like {@code irc.inbound.message}.
+ */
+public class MetricsRegistry {
+    private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentSkipListMap<String, StripedCounter>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+    public StripedCounter counter(String name) {
+        StripedCounter counter = counters.get(name);
+        if (counter == null) {
+            StripedCounter created = new StripedCounter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge with the same name
+     *
+     * @param name The gauge's name
+     * @param gauge The gauge
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Describe every metric in a line of its own, sorted by name
+     *
+     * @return The lines
+     */
+    public List<String> summarize() {
+        List<String> lines = new ArrayList<String>(counters.size() + histograms.size() + gauges.size());
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines;
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format
+     *
+     * @param builder The builder to append to
+     * @return The builder
+     */
+    public StringBuilder writePrometheus(StringBuilder builder) {
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet()) {
+            String name = prometheusName(entry.getKey()) + "_total";
+            builder.append("# TYPE ").append(name).append(" counter\n");
+            builder.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            String name = prometheusName(entry.getKey());
+            builder.append("# TYPE ").append(name).append(" gauge\n");
+            builder.append(name).append(' ').append(entry.getValue().getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = prometheusName(entry.getKey()) + "_seconds";
+            Histogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            builder.append("# TYPE ").append(name).append(" summary\n");
+            appendQuantile(builder, name, "0.5", histogram.getPercentileNanos(0.5));
+            appendQuantile(builder, name, "0.99", histogram.getPercentileNanos(0.99));
+            appendQuantile(builder, name, "1", histogram.getMaxNanos());
+            builder.append(name).append("_sum ").append(toSeconds(histogram.getTotalNanos())).append('\n');
+            builder.append(name).append("_count ").append(count).append('\n');
+        }
+        return builder;
+    }
+
+    private static void appendQuantile(StringBuilder builder, String name, String quantile, long nanos) {
+        builder.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(toSeconds(nanos)).append('\n');
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static String prometheusName(String name) {
+        return "narwhalirc_" + name.replace('.', '_').replace('-', '_');
+    }
+}
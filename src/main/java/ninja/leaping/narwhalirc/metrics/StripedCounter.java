@@ -0,0 +1,66 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells so threads incrementing it at once rarely contend.
+ * Each cell is padded onto its own cache line. Reading sums every cell, so it is slower than writing.
+ */
+public class StripedCounter {
+    /**
+     * Longs per cache line, so cells do not share one
+     */
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripeCount();
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripeCount() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+    }
+
+    public void increment() {
+        cells.getAndIncrement(cell());
+    }
+
+    public void add(long amount) {
+        cells.getAndAdd(cell(), amount);
+    }
+
+    /**
+     * @return The sum of every cell. Not an atomic snapshot while other threads are adding.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
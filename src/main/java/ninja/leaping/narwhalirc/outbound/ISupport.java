@@ -0,0 +1,67 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.outbound;
+
+/**
+ * Reads the tokens we care about from RPL_ISUPPORT (numeric 005) lines
+ */
+public class ISupport {
+    /**
+     * The most targets used for one PRIVMSG when the server sets no limit
+     */
+    public static final int UNLIMITED_TARGETS = 8;
+
+    private ISupport() {
+    }
+
+    /**
+     * Find the number of targets a PRIVMSG may have from the TARGMAX or MAXTARGETS token
+     *
+     * @param line The raw 005 line
+     * @param current The limit known so far
+     * @return The limit from this line, or {@code current} if the line does not say
+     */
+    public static int getMaxTargets(String line, int current) {
+        int trailing = line.indexOf(" :", 1);
+        String[] tokens = (trailing == -1 ? line : line.substring(0, trailing)).split(" ");
+        for (String token : tokens) {
+            if (token.startsWith("TARGMAX=")) {
+                for (String limit : token.substring("TARGMAX=".length()).split(",")) {
+                    int colon = limit.indexOf(':');
+                    if (colon != -1 && limit.substring(0, colon).equalsIgnoreCase("PRIVMSG")) {
+                        return parseLimit(limit.substring(colon + 1), current);
+                    }
+                }
+            } else if (token.startsWith("MAXTARGETS=")) {
+                return parseLimit(token.substring("MAXTARGETS=".length()), current);
+            }
+        }
+        return current;
+    }
+
+    private static int parseLimit(String value, int current) {
+        if (value.isEmpty()) {
+            return UNLIMITED_TARGETS;
+        }
+        try {
+            return Math.max(1, Math.min(UNLIMITED_TARGETS, Integer.parseInt(value)));
+        } catch (NumberFormatException e) {
+            return current;
+        }
+    }
+}
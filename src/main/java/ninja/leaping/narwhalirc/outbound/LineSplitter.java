@@ -0,0 +1,204 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.outbound;
+
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits messages into pieces that fit a byte budget once encoded as UTF-8.
+ * Splits happen on word boundaries where possible, never inside a surrogate pair
+ * or a color code, and formatting active at the end of one piece is restored
+ * at the start of the next.
+ */
+public class LineSplitter {
+    /**
+     * The maximum length of an IRC line, including the trailing CRLF
+     */
+    public static final int MAX_LINE_BYTES = 512;
+
+    private LineSplitter() {
+    }
+
+    /**
+     * IRC formatting that is active at some point in a message
+     */
+    private static class FormattingState {
+        private boolean bold, underline, italic, reverse;
+        private String color;
+
+        /**
+         * Apply the formatting codes in part of a message
+         */
+        public void update(String text, int start, int end) {
+            for (int i = start; i < end; ++i) {
+                switch (text.charAt(i)) {
+                    case IrcStyleHandler.BOLD_CHAR:
+                        bold = !bold;
+                        break;
+                    case IrcStyleHandler.UNDERLINE_CHAR:
+                        underline = !underline;
+                        break;
+                    case IrcStyleHandler.ITALIC_CHAR:
+                        italic = !italic;
+                        break;
+                    case IrcStyleHandler.REVERSE_CHAR:
+                        reverse = !reverse;
+                        break;
+                    case IrcStyleHandler.RESET_CHAR:
+                        bold = underline = italic = reverse = false;
+                        color = null;
+                        break;
+                    case IrcStyleHandler.COLOR_CHAR:
+                        int codeEnd = colorCodeEnd(text, i);
+                        color = codeEnd == i + 1 ? null : text.substring(i, codeEnd);
+                        i = codeEnd - 1;
+                        break;
+                }
+            }
+        }
+
+        /**
+         * @return The codes needed to restore this state at the start of a line
+         */
+        public String toPrefix() {
+            if (!bold && !underline && !italic && !reverse && color == null) {
+                return "";
+            }
+            StringBuilder builder = new StringBuilder(8);
+            if (color != null) {
+                builder.append(color);
+            }
+            if (bold) {
+                builder.append(IrcStyleHandler.BOLD_CHAR);
+            }
+            if (underline) {
+                builder.append(IrcStyleHandler.UNDERLINE_CHAR);
+            }
+            if (italic) {
+                builder.append(IrcStyleHandler.ITALIC_CHAR);
+            }
+            if (reverse) {
+                builder.append(IrcStyleHandler.REVERSE_CHAR);
+            }
+            return builder.toString();
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return The index just after the color code starting at {@code start}
+     */
+    private static int colorCodeEnd(String text, int start) {
+        final int length = text.length();
+        int i = start + 1;
+        if (i < length && isDigit(text.charAt(i))) {
+            ++i;
+            if (i < length && isDigit(text.charAt(i))) {
+                ++i;
+            }
+            if (i + 1 < length && text.charAt(i) == ',' && isDigit(text.charAt(i + 1))) {
+                i += 2;
+                if (i < length && isDigit(text.charAt(i))) {
+                    ++i;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static int utf8Length(char c) {
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
+
+    /**
+     * Move a cut point so it does not fall inside a color code
+     */
+    private static int avoidColorCode(String text, int start, int cut) {
+        for (int i = Math.max(start, cut - 5); i < cut; ++i) {
+            if (text.charAt(i) == IrcStyleHandler.COLOR_CHAR && colorCodeEnd(text, i) > cut) {
+                return i;
+            }
+        }
+        return cut;
+    }
+
+    /**
+     * Split a message into lines of at most {@code maxBytes} bytes
+     *
+     * @param text The message to split
+     * @param maxBytes The budget for each line, in UTF-8 bytes
+     * @return The lines, in order
+     */
+    public static List<String> split(String text, int maxBytes) {
+        final int length = text.length();
+        if (length <= maxBytes / 3 || NarwhalIRCUtil.utf8Length(text) <= maxBytes) {
+            return Collections.singletonList(text);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        FormattingState state = new FormattingState();
+        String carry = "";
+        int pos = 0;
+        while (pos < length) {
+            final int budget = Math.max(4, maxBytes - carry.length());
+            int end = pos, bytes = 0, lastSpace = -1;
+            while (end < length) {
+                char c = text.charAt(end);
+                int chars = 1, charBytes = utf8Length(c);
+                if (Character.isHighSurrogate(c) && end + 1 < length && Character.isLowSurrogate(text.charAt(end + 1))) {
+                    chars = 2;
+                    charBytes = 4;
+                }
+                if (bytes + charBytes > budget) {
+                    break;
+                }
+                if (c == ' ') {
+                    lastSpace = end;
+                }
+                bytes += charBytes;
+                end += chars;
+            }
+
+            int cut, next;
+            if (end < length && lastSpace > pos) {
+                cut = lastSpace;
+                next = lastSpace + 1;
+            } else {
+                cut = end < length ? avoidColorCode(text, pos, end) : end;
+                if (cut == pos) {
+                    cut = end;
+                }
+                next = cut;
+            }
+
+            lines.add(carry + text.substring(pos, cut));
+            state.update(text, pos, next);
+            carry = state.toPrefix();
+            pos = next;
+        }
+        return lines;
+    }
+}
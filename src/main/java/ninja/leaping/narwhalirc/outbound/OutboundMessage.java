@@ -0,0 +1,67 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.outbound;
+
+/**
+ * A PRIVMSG waiting in an {@link OutboundScheduler}
+ */
+public final class OutboundMessage {
+    private final String target;
+    private final String text;
+    private final OutboundPriority priority;
+    private final boolean packable;
+    private final long enqueuedNanos;
+
+    public OutboundMessage(String target, String text, OutboundPriority priority, boolean packable) {
+        this(target, text, priority, packable, System.nanoTime());
+    }
+
+    public OutboundMessage(String target, String text, OutboundPriority priority, boolean packable, long enqueuedNanos) {
+        this.target = target;
+        this.text = text;
+        this.priority = priority;
+        this.packable = packable;
+        this.enqueuedNanos = enqueuedNanos;
+    }
+
+    /**
+     * @return The channel or nick this message is sent to
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public OutboundPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return Whether this message may share a line with other packable messages to the same target
+     */
+    public boolean isPackable() {
+        return packable;
+    }
+
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+}
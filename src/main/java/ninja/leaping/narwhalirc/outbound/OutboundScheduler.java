@@ -0,0 +1,439 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.outbound;
+
+import ninja.leaping.narwhalirc.metrics.Histogram;
+import ninja.leaping.narwhalirc.metrics.MetricsRegistry;
+import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
+import org.pircbotx.PircBotX;
+import org.pircbotx.User;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends PRIVMSGs for one connection, paced by a token bucket.
+ * Messages are served strictly by {@link OutboundPriority}, so command replies never wait
+ * behind relayed chat, and relayed chat never waits behind join and quit notices.
+ *
+ * PINGs are answered by PircBotX directly and never pass through this scheduler.
+ *
+ * Messages too long for one line are split to fit the line limit, taking our own prefix
+ * into account, and the remaining pieces go out before anything else in the same lane.
+ * Consecutive packable messages to the same target are joined into one line when they fit.
+ * When the server allows PRIVMSG to several targets, consecutive messages with the same text
+ * to different channels are sent as one line, up to the server's TARGMAX.
+ */
+public class OutboundScheduler {
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /**
+     * How long stopping waits for the sending thread to finish the line it is sending
+     */
+    private static final long STOP_JOIN_MILLIS = 1000;
+    private static final OutboundPriority[] PRIORITIES = OutboundPriority.values();
+    /**
+     * Assumed length of our host when the server has not told us yet, the longest a hostname can be
+     */
+    private static final int MAX_HOST_LENGTH = 63;
+    /**
+     * What joins packed messages
+     */
+    public static final String PACK_SEPARATOR = " | ";
+    private final PircBotX bot;
+    private final String name;
+    private final Logger logger;
+    private volatile FloodControlConfiguration config;
+    private final Queue<OutboundMessage>[] lanes;
+    private final AtomicInteger[] depths;
+    /**
+     * Time from queueing to sending, per lane, shared by every bot as {@code outbound.wait-time.<lane>}
+     */
+    private final Histogram[] waitTimes;
+    private volatile Sender sender;
+    private volatile boolean running;
+    private volatile int maxTargets = 1;
+    /**
+     * Messages sent while the scheduler was stopped, which were discarded
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public OutboundScheduler(PircBotX bot, String name, Logger logger, MetricsRegistry metrics) {
+        this.bot = bot;
+        this.name = name;
+        this.logger = logger;
+        this.lanes = new Queue[PRIORITIES.length];
+        this.depths = new AtomicInteger[PRIORITIES.length];
+        this.waitTimes = new Histogram[PRIORITIES.length];
+        for (OutboundPriority priority : PRIORITIES) {
+            lanes[priority.ordinal()] = new ConcurrentLinkedQueue<OutboundMessage>();
+            depths[priority.ordinal()] = new AtomicInteger();
+            waitTimes[priority.ordinal()] = metrics.histogram("outbound.wait-time." + priority.name().toLowerCase());
+        }
+    }
+
+    /**
+     * Start sending queued messages. Anything queued while stopped is stale and discarded.
+     *
+     * @param config The flood control settings to pace messages with
+     */
+    public void start(FloodControlConfiguration config) {
+        if (sender != null) {
+            return;
+        }
+        this.config = config;
+        clearLanes();
+        running = true;
+        Sender sender = new Sender();
+        this.sender = sender;
+        sender.thread.start();
+    }
+
+    /**
+     * Stop sending. Anything still queued is discarded. Waits a short while for the sending thread
+     * to finish the line it is sending, so a quick restart does not have two threads taking from the lanes.
+     */
+    public void stop() {
+        running = false;
+        Sender sender = this.sender;
+        this.sender = null;
+        if (sender != null) {
+            LockSupport.unpark(sender.thread);
+            if (sender.thread != Thread.currentThread()) {
+                try {
+                    sender.thread.join(STOP_JOIN_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (sender.thread.isAlive()) {
+                    logger.warning("Outbound sender for " + name + " did not stop within " + STOP_JOIN_MILLIS + " ms");
+                }
+            }
+        }
+        clearLanes();
+    }
+
+    private void clearLanes() {
+        for (OutboundPriority priority : PRIORITIES) {
+            lanes[priority.ordinal()].clear();
+            depths[priority.ordinal()].set(0);
+        }
+    }
+
+    /**
+     * Queue a message
+     *
+     * @param priority The lane to queue the message in
+     * @param target The channel or nick to send to
+     * @param text The message text
+     */
+    public void send(OutboundPriority priority, String target, String text) {
+        send(priority, target, text, false);
+    }
+
+    /**
+     * Queue a message
+     *
+     * @param priority The lane to queue the message in
+     * @param target The channel or nick to send to
+     * @param text The message text
+     * @param packable Whether the message may share a line with other packable messages
+     */
+    public void send(OutboundPriority priority, String target, String text, boolean packable) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return;
+        }
+        lanes[priority.ordinal()].add(new OutboundMessage(target, text, priority, packable));
+        depths[priority.ordinal()].incrementAndGet();
+        Sender sender = this.sender;
+        if (sender != null) {
+            LockSupport.unpark(sender.thread);
+        }
+    }
+
+    /**
+     * Wait for everything queued so far to be sent
+     *
+     * @param timeout Milliseconds to wait at most
+     * @return Whether everything was sent before the timeout
+     */
+    public boolean drain(long timeout) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Sender sender = this.sender;
+        while (running && sender != null && (sender.busy || hasQueued())) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, DRAIN_POLL_NANOS));
+        }
+        return (sender == null || !sender.busy) && !hasQueued();
+    }
+
+    private boolean hasQueued() {
+        for (OutboundPriority priority : PRIORITIES) {
+            if (depths[priority.ordinal()].get() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isChannel(String target) {
+        return target.length() > 0 && (target.charAt(0) == '#' || target.charAt(0) == '&');
+    }
+
+    /**
+     * Combine the messages at the head of a lane that have the same text as {@code first} but go to
+     * other channels into one message with a comma-separated target
+     */
+    private static OutboundMessage merge(Queue<OutboundMessage> lane, AtomicInteger depth, OutboundMessage first, int maxTargets) {
+        OutboundMessage next = lane.peek();
+        if (next == null || !isChannel(first.getTarget())) {
+            return first;
+        }
+        List<String> targets = null;
+        while (next != null && (targets == null || targets.size() < maxTargets)
+                && isChannel(next.getTarget()) && next.getText().equals(first.getText())) {
+            if (targets == null) {
+                targets = new ArrayList<String>(maxTargets);
+                targets.add(first.getTarget());
+            }
+            if (targets.contains(next.getTarget())) {
+                break;
+            }
+            targets.add(next.getTarget());
+            lane.poll();
+            depth.decrementAndGet();
+            next = lane.peek();
+        }
+        if (targets == null) {
+            return first;
+        }
+        StringBuilder target = new StringBuilder(targets.get(0));
+        for (int i = 1; i < targets.size(); ++i) {
+            target.append(',').append(targets.get(i));
+        }
+        return new OutboundMessage(target.toString(), first.getText(), first.getPriority(), false, first.getEnqueuedNanos());
+    }
+
+    /**
+     * Join the packable messages at the head of a lane that share a target with {@code first}
+     */
+    private static OutboundMessage pack(Queue<OutboundMessage> lane, AtomicInteger depth, OutboundMessage first, int budget) {
+        OutboundMessage next = lane.peek();
+        if (next == null || !next.isPackable() || !next.getTarget().equals(first.getTarget())) {
+            return first;
+        }
+        StringBuilder packed = new StringBuilder(first.getText());
+        int bytes = NarwhalIRCUtil.utf8Length(packed);
+        while (next != null && next.isPackable() && next.getTarget().equals(first.getTarget())) {
+            int nextBytes = PACK_SEPARATOR.length() + NarwhalIRCUtil.utf8Length(next.getText());
+            if (bytes + nextBytes > budget) {
+                break;
+            }
+            lane.poll();
+            depth.decrementAndGet();
+            packed.append(PACK_SEPARATOR).append(next.getText());
+            bytes += nextBytes;
+            next = lane.peek();
+        }
+        return new OutboundMessage(first.getTarget(), packed.toString(), first.getPriority(), false, first.getEnqueuedNanos());
+    }
+
+    /**
+     * Work out how many bytes of message text fit in one PRIVMSG to a target, after the
+     * server adds our {@code :nick!user@host} prefix when relaying it
+     *
+     * @param target The channel or nick the message is sent to
+     * @return The number of bytes available for message text
+     */
+    public int getLineBudget(String target) {
+        User self = bot.getUserBot();
+        String login = self == null ? null : self.getLogin();
+        String host = self == null ? null : self.getHostmask();
+        int loginLength = login == null || login.isEmpty()
+                ? bot.getConfiguration().getLogin().length() + 1 // Servers add ~ without ident
+                : NarwhalIRCUtil.utf8Length(login);
+        int hostLength = host == null || host.isEmpty() ? MAX_HOST_LENGTH : NarwhalIRCUtil.utf8Length(host);
+        int overhead = 1 + NarwhalIRCUtil.utf8Length(bot.getNick()) // :nick
+                + 1 + loginLength // !user
+                + 1 + hostLength // @host
+                + " PRIVMSG ".length() + NarwhalIRCUtil.utf8Length(target) + " :".length()
+                + 2; // CRLF
+        return LineSplitter.MAX_LINE_BYTES - overhead;
+    }
+
+    /**
+     * Set how many targets one PRIVMSG may have, as advertised by the server
+     *
+     * @param maxTargets The limit, where 1 turns off sending to several targets at once
+     */
+    public void setMaxTargets(int maxTargets) {
+        this.maxTargets = Math.max(1, maxTargets);
+    }
+
+    public int getMaxTargets() {
+        return maxTargets;
+    }
+
+    /**
+     * @return The number of messages discarded because they were sent while the scheduler was stopped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @param priority The lane
+     * @return The number of messages waiting in the lane
+     */
+    public int getQueueDepth(OutboundPriority priority) {
+        return depths[priority.ordinal()].get();
+    }
+
+    /**
+     * @param priority The lane
+     * @return The time messages in the lane waited before being sent, across every bot
+     */
+    public Histogram getWaitTime(OutboundPriority priority) {
+        return waitTimes[priority.ordinal()];
+    }
+
+    /**
+     * One run of the sending thread. Each start gets its own, so split pieces and the busy flag
+     * of a thread that is still winding down are never shared with its replacement.
+     */
+    private class Sender implements Runnable {
+        private final Thread thread;
+        /**
+         * Pieces of split messages still to send. Only touched by the sending thread.
+         */
+        private final Deque<OutboundMessage>[] remainders;
+        /**
+         * Whether the sending thread holds a message or split pieces that have not been sent yet
+         */
+        private volatile boolean busy;
+
+        @SuppressWarnings("unchecked")
+        Sender() {
+            this.remainders = new Deque[PRIORITIES.length];
+            for (OutboundPriority priority : PRIORITIES) {
+                remainders[priority.ordinal()] = new ArrayDeque<OutboundMessage>();
+            }
+            this.thread = new Thread(this, "NarwhalIRC-Outbound-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        private boolean isEmpty() {
+            for (OutboundPriority priority : PRIORITIES) {
+                if (depths[priority.ordinal()].get() > 0 || !remainders[priority.ordinal()].isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Take the next line to send, splitting or packing as needed
+         */
+        private OutboundMessage poll() {
+            for (OutboundPriority priority : PRIORITIES) {
+                final int lane = priority.ordinal();
+                OutboundMessage message = remainders[lane].poll();
+                if (message != null) {
+                    return message;
+                }
+                message = lanes[lane].poll();
+                if (message == null) {
+                    continue;
+                }
+                depths[lane].decrementAndGet();
+
+                OutboundMessage merged = maxTargets > 1 ? merge(lanes[lane], depths[lane], message, maxTargets) : message;
+                if (merged != message) {
+                    message = merged;
+                } else if (message.isPackable()) {
+                    message = pack(lanes[lane], depths[lane], message, getLineBudget(message.getTarget()));
+                }
+                final int budget = getLineBudget(message.getTarget());
+                List<String> pieces = LineSplitter.split(message.getText(), budget);
+                if (pieces.size() == 1) {
+                    return message;
+                }
+                for (int i = pieces.size() - 1; i > 0; --i) {
+                    remainders[lane].addFirst(new OutboundMessage(message.getTarget(), pieces.get(i), priority,
+                            false, message.getEnqueuedNanos()));
+                }
+                return new OutboundMessage(message.getTarget(), pieces.get(0), priority, false, message.getEnqueuedNanos());
+            }
+            return null;
+        }
+
+        @Override
+        public void run() {
+            TokenBucket bucket = new TokenBucket(config.burst, TimeUnit.MILLISECONDS.toNanos(config.refillInterval), System.nanoTime());
+            while (running && OutboundScheduler.this.sender == this) {
+                if (isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                long wait = bucket.nanosUntilAvailable(System.nanoTime());
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+
+                // Poll only once a token is in hand, so a higher priority message that arrived
+                // while we were waiting is sent first
+                busy = true;
+                OutboundMessage message = poll();
+                if (message == null) {
+                    busy = !isEmpty();
+                    continue;
+                }
+                long now = System.nanoTime();
+                bucket.tryTake(now);
+                waitTimes[message.getPriority().ordinal()].record(now - message.getEnqueuedNanos());
+                try {
+                    bot.sendIRC().message(message.getTarget(), message.getText());
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error sending message to " + message.getTarget() + " on " + name, e);
+                }
+                busy = !isEmpty();
+            }
+            for (Deque<OutboundMessage> remainder : remainders) {
+                remainder.clear();
+            }
+            busy = false;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.outbound;
+
+/**
+ * A token bucket owned by a single thread
+ */
+public class TokenBucket {
+    private final long capacity;
+    private final long refillNanos;
+    private long tokens;
+    private long lastRefill;
+
+    /**
+     * @param capacity The maximum number of tokens held
+     * @param refillNanos The time it takes to earn one token
+     * @param now The current {@link System#nanoTime()}
+     */
+    public TokenBucket(long capacity, long refillNanos, long now) {
+        this.capacity = Math.max(1, capacity);
+        this.refillNanos = Math.max(1, refillNanos);
+        this.tokens = this.capacity;
+        this.lastRefill = now;
+    }
+
+    private void refill(long now) {
+        long earned = (now - lastRefill) / refillNanos;
+        if (earned > 0) {
+            tokens = Math.min(capacity, tokens + earned);
+            lastRefill = tokens == capacity ? now : lastRefill + earned * refillNanos;
+        }
+    }
+
+    /**
+     * Take a token if one is available
+     *
+     * @param now The current {@link System#nanoTime()}
+     * @return Whether a token was taken
+     */
+    public boolean tryTake(long now) {
+        refill(now);
+        if (tokens > 0) {
+            --tokens;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param now The current {@link System#nanoTime()}
+     * @return The nanoseconds until a token is available, 0 if one is available now
+     */
+    public long nanosUntilAvailable(long now) {
+        refill(now);
+        return tokens > 0 ? 0 : refillNanos - (now - lastRefill);
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+import org.spongepowered.api.event.entity.living.player.PlayerChatEvent;
+
+/**
+ * An immutable copy of everything the relay needs from a {@link PlayerChatEvent}.
+ * Snapshots are captured on the server thread and may be read from any thread afterwards.
+ */
+public final class ChatSnapshot {
+    private final ChatTemplate format;
+    private final ChatArguments name;
+    private final ChatArguments message;
+    private final long createdNanos;
+
+    private ChatSnapshot(ChatTemplate format, ChatArguments name, ChatArguments message, long createdNanos) {
+        this.format = format;
+        this.name = name;
+        this.message = message;
+        this.createdNanos = createdNanos;
+    }
+
+    public static ChatSnapshot of(PlayerChatEvent event) {
+        return new ChatSnapshot(event.getFormat(),
+                new ChatArguments(event.getPlayer().getDisplayName()),
+                new ChatArguments(event.getMessage()),
+                System.nanoTime());
+    }
+
+    /**
+     * @return The chat format of the original event
+     */
+    public ChatTemplate getFormat() {
+        return format;
+    }
+
+    public ChatArguments getName() {
+        return name;
+    }
+
+    public ChatArguments getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} value at which this snapshot was taken
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+/**
+ * Channels with equal format classes render any given event to exactly the same line,
+ * so the relay only has to render once per class.
+ */
+public final class FormatClass {
+    private final String format;
+    private final boolean stripColor;
+    private final int hashCode;
+
+    public FormatClass(String format, boolean stripColor) {
+        this.format = format;
+        this.stripColor = stripColor;
+        this.hashCode = 31 * format.hashCode() + (stripColor ? 1 : 0);
+    }
+
+    /**
+     * @return The format string of the server-to-irc template
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    public boolean isStripColor() {
+        return stripColor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FormatClass)) {
+            return false;
+        }
+        FormatClass other = (FormatClass) o;
+        return hashCode == other.hashCode
+                && stripColor == other.stripColor
+                && format.equals(other.format);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "FormatClass{format=" + format + ", stripColor=" + stripColor + "}";
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+import ninja.leaping.narwhalirc.NarwhalIRCPlugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects lines from IRC headed for players and delivers them from the server thread, once per tick,
+ * to the players in the plugin's {@link RecipientCache}. At most a set number of lines
+ * are delivered each tick; if the backlog grows past its limit, the oldest lines are dropped and
+ * a summary is shown in their place.
+ */
+public class InboundBuffer implements Runnable {
+    /**
+     * Milliseconds between server ticks
+     */
+    public static final long TICK_LENGTH = 50;
+    private final NarwhalIRCPlugin plugin;
+    private final Queue<ChatArguments> lines = new ConcurrentLinkedQueue<ChatArguments>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int linesPerTick;
+    private final int maxBacklog;
+    private Task task;
+
+    public InboundBuffer(NarwhalIRCPlugin plugin, RelayConfiguration config) {
+        this.plugin = plugin;
+        this.linesPerTick = Math.max(1, config.inboundLinesPerTick);
+        this.maxBacklog = Math.max(linesPerTick, config.inboundBacklog);
+    }
+
+    public void start() {
+        task = plugin.getEngine().getScheduler().scheduleSyncRepeatingTask(plugin, this, TICK_LENGTH, TICK_LENGTH, TaskPriority.NORMAL);
+    }
+
+    /**
+     * Stop draining, delivering anything still buffered first. Must be called from the server thread.
+     */
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        while (!lines.isEmpty()) {
+            run();
+        }
+    }
+
+    /**
+     * Queue a line for delivery to players. Safe to call from any thread.
+     *
+     * @param line The line
+     */
+    public void add(ChatArguments line) {
+        lines.add(line);
+        if (size.incrementAndGet() > maxBacklog && lines.poll() != null) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        final long skipped = dropped.getAndSet(0);
+        if (skipped == 0 && lines.isEmpty()) {
+            return;
+        }
+
+        List<ChatArguments> batch = new ArrayList<ChatArguments>(Math.min(linesPerTick, size.get()) + 1);
+        if (skipped > 0) {
+            batch.add(new ChatArguments(ChatStyle.GRAY, "[", skipped, " IRC messages were skipped]"));
+        }
+        ChatArguments line;
+        while (batch.size() < linesPerTick && (line = lines.poll()) != null) {
+            size.decrementAndGet();
+            batch.add(line);
+        }
+
+        for (Player player : plugin.getRecipients().getRecipients()) {
+            for (ChatArguments message : batch) {
+                player.sendMessage(message);
+            }
+        }
+    }
+
+    /**
+     * @return The number of lines waiting to be delivered
+     */
+    public int getBacklog() {
+        return size.get();
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+import ninja.leaping.narwhalirc.NarwhalIRCPlugin;
+import ninja.leaping.narwhalirc.PassedEvent;
+import ninja.leaping.narwhalirc.util.NarwhalIRCUtil;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Buffers join, quit and kick notices over a short window and sends one line per
+ * event type, so a burst of players joining becomes "[joined: a, b, c (+12)]"
+ * instead of one line per player.
+ */
+public class NoticeCoalescer {
+    private final NarwhalIRCPlugin plugin;
+    private final ScheduledExecutorService executor;
+    private final long window;
+    private final Map<PassedEvent, Pending> pending = new EnumMap<PassedEvent, Pending>(PassedEvent.class);
+
+    private static class Notice {
+        private final String name;
+        private final ChatArguments message;
+
+        private Notice(String name, ChatArguments message) {
+            this.name = name;
+            this.message = message;
+        }
+    }
+
+    private class Pending implements Runnable {
+        private final PassedEvent type;
+        private final String label;
+        private final Queue<Notice> notices = new ConcurrentLinkedQueue<Notice>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Pending(PassedEvent type, String label) {
+            this.type = type;
+            this.label = label;
+        }
+
+        public void add(Notice notice) {
+            notices.add(notice);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.schedule(this, window, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            List<Notice> batch = new ArrayList<Notice>();
+            Notice notice;
+            while ((notice = notices.poll()) != null) {
+                batch.add(notice);
+            }
+            if (batch.size() == 1) {
+                plugin.broadcastBotMessage(type, bracket(batch.get(0).message));
+            } else if (batch.size() > 1) {
+                plugin.broadcastBotMessage(type, summarize(batch));
+            }
+        }
+
+        private ChatArguments summarize(List<Notice> batch) {
+            ChatArguments line = new ChatArguments();
+            line.append("[").append(label).append(": ");
+            // Leave room for the brackets, label and the count of names left out
+            final int maxNameBytes = plugin.getLineBudget(type) - "[: (+)]".length() - label.length()
+                    - String.valueOf(batch.size()).length();
+            int bytes = 0;
+            int included = 0;
+            for (Notice notice : batch) {
+                int length = NarwhalIRCUtil.utf8Length(notice.name) + 2;
+                if (included > 0 && bytes + length > maxNameBytes) {
+                    break;
+                }
+                if (included > 0) {
+                    line.append(", ");
+                }
+                line.append(notice.name);
+                bytes += length;
+                ++included;
+            }
+            if (included < batch.size()) {
+                line.append(" (+").append(batch.size() - included).append(")");
+            }
+            return line.append("]");
+        }
+    }
+
+    /**
+     * @param plugin The plugin to broadcast notices through
+     * @param executor The executor flushes are scheduled on
+     * @param window Milliseconds to collect notices for before sending them. 0 sends every notice immediately.
+     */
+    public NoticeCoalescer(NarwhalIRCPlugin plugin, ScheduledExecutorService executor, long window) {
+        this.plugin = plugin;
+        this.executor = executor;
+        this.window = window;
+        pending.put(PassedEvent.JOIN, new Pending(PassedEvent.JOIN, "joined"));
+        pending.put(PassedEvent.QUIT, new Pending(PassedEvent.QUIT, "left"));
+        pending.put(PassedEvent.KICK, new Pending(PassedEvent.KICK, "kicked"));
+    }
+
+    private static ChatArguments bracket(ChatArguments message) {
+        ChatArguments items = new ChatArguments();
+        items.append("[").append(message).append(ChatStyle.RESET).append("]");
+        return items;
+    }
+
+    /**
+     * Queue a notice
+     *
+     * @param type The type of notice, one of {@link PassedEvent#JOIN}, {@link PassedEvent#QUIT} or {@link PassedEvent#KICK}
+     * @param name The name of the player the notice is about
+     * @param message The message to send if this is the only notice in its window
+     */
+    public void add(PassedEvent type, String name, ChatArguments message) {
+        Pending queue = pending.get(type);
+        if (window <= 0 || queue == null) {
+            plugin.broadcastBotMessage(type, bracket(message));
+        } else {
+            queue.add(new Notice(name, message));
+        }
+    }
+
+    /**
+     * Send everything that is still buffered
+     */
+    public void flush() {
+        for (Pending queue : pending.values()) {
+            queue.run();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+/**
+ * What the relay does when a chat line arrives and the relay queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Evict the oldest queued line to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the new line, but count it so the relay worker can report
+     * a single summary line once the queue has drained
+     */
+    COALESCE,
+    /**
+     * Block the submitting thread until space is available or the configured block timeout elapses
+     */
+    BLOCK,
+}
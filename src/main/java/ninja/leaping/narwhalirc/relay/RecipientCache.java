@@ -0,0 +1,125 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+import ninja.leaping.narwhalirc.NarwhalIRCPlugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The online players holding {@link NarwhalIRCPlugin#IRC_BROADCAST_PERMISSION}, kept up to date as
+ * players join and quit so delivering a line needs no permission checks. Permissions can change
+ * without any event we can listen for, so the set is also rebuilt on a fixed period.
+ * The set is replaced rather than modified, so readers on any thread see a consistent array.
+ */
+public class RecipientCache implements Runnable {
+    private static final Player[] NO_PLAYERS = new Player[0];
+    private final NarwhalIRCPlugin plugin;
+    private final long refreshPeriod;
+    private volatile Player[] recipients = NO_PLAYERS;
+    private Task task;
+
+    /**
+     * @param plugin The plugin
+     * @param refreshPeriod Milliseconds between full rebuilds
+     */
+    public RecipientCache(NarwhalIRCPlugin plugin, long refreshPeriod) {
+        this.plugin = plugin;
+        this.refreshPeriod = refreshPeriod;
+    }
+
+    public void start() {
+        refresh();
+        if (refreshPeriod > 0) {
+            task = plugin.getEngine().getScheduler().scheduleSyncRepeatingTask(plugin, this, refreshPeriod, refreshPeriod, TaskPriority.LOW);
+        }
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        refresh();
+    }
+
+    /**
+     * Rebuild the set from every online player
+     */
+    public synchronized void refresh() {
+        Player[] online = plugin.getServer().getOnlinePlayers();
+        List<Player> eligible = new ArrayList<Player>(online.length);
+        for (Player player : online) {
+            if (player.hasPermission(NarwhalIRCPlugin.IRC_BROADCAST_PERMISSION)) {
+                eligible.add(player);
+            }
+        }
+        recipients = eligible.toArray(new Player[eligible.size()]);
+    }
+
+    /**
+     * Add a player who has just joined, if they may receive IRC messages
+     *
+     * @param player The player
+     */
+    public synchronized void add(Player player) {
+        if (!player.hasPermission(NarwhalIRCPlugin.IRC_BROADCAST_PERMISSION)) {
+            return;
+        }
+        Player[] current = recipients;
+        for (Player existing : current) {
+            if (existing == player) {
+                return;
+            }
+        }
+        Player[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = player;
+        recipients = updated;
+    }
+
+    /**
+     * Remove a player who is leaving
+     *
+     * @param player The player
+     */
+    public synchronized void remove(Player player) {
+        Player[] current = recipients;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i] == player) {
+                Player[] updated = new Player[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                recipients = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The players who receive IRC messages. The array must not be modified.
+     */
+    public Player[] getRecipients() {
+        return recipients;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
+
+/**
+ * Settings for the server to IRC relay pipeline
+ */
+@ConfigSerializable
+public class RelayConfiguration {
+    @Setting("capacity") public int capacity = 1024;
+    @Setting("overflow-policy") public OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    @Setting("block-timeout") public long blockTimeout = 50;
+    /**
+     * Milliseconds to collect join, quit and kick notices for before sending them as one line
+     */
+    @Setting("notice-window") public long noticeWindow = 2000;
+    /**
+     * The most lines from IRC shown to players each server tick
+     */
+    @Setting("inbound-lines-per-tick") public int inboundLinesPerTick = 20;
+    /**
+     * The most lines from IRC waiting to be shown before the oldest are skipped
+     */
+    @Setting("inbound-backlog") public int inboundBacklog = 500;
+    /**
+     * Milliseconds between rechecking which players may receive lines from IRC
+     */
+    @Setting("recipient-refresh") public long recipientRefresh = 10000;
+}
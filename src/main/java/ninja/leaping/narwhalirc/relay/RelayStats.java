@@ -0,0 +1,75 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+import ninja.leaping.narwhalirc.metrics.Histogram;
+import ninja.leaping.narwhalirc.metrics.MetricsRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the relay pipeline. Stage latencies live in the plugin's metrics registry
+ * as {@code relay.queue-time}, {@code relay.format-time} and {@code relay.deliver-time}.
+ */
+public class RelayStats {
+    private final Histogram queue;
+    private final Histogram format;
+    private final Histogram deliver;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public RelayStats(MetricsRegistry metrics) {
+        this.queue = metrics.histogram("relay.queue-time");
+        this.format = metrics.histogram("relay.format-time");
+        this.deliver = metrics.histogram("relay.deliver-time");
+    }
+
+    /**
+     * @return Time spent between capturing a chat event and the worker picking it up
+     */
+    public Histogram getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return Time spent filling and rendering server-to-irc templates
+     */
+    public Histogram getFormat() {
+        return format;
+    }
+
+    /**
+     * @return Time spent handing rendered lines to the bots
+     */
+    public Histogram getDeliver() {
+        return deliver;
+    }
+
+    public AtomicLong getSubmitted() {
+        return submitted;
+    }
+
+    public AtomicLong getDropped() {
+        return dropped;
+    }
+
+    public AtomicLong getCoalesced() {
+        return coalesced;
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.relay;
+
+import ninja.leaping.narwhalirc.ChannelCommandSource;
+import ninja.leaping.narwhalirc.NarwhalIRCPlugin;
+import ninja.leaping.narwhalirc.PassedEvent;
+import ninja.leaping.narwhalirc.chatstyle.CompiledTemplate;
+import ninja.leaping.narwhalirc.chatstyle.IrcStyleHandler;
+import org.spongepowered.api.event.entity.living.player.PlayerChatEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Formats and delivers server chat to IRC on a dedicated thread, so the server's
+ * event thread only has to capture a {@link ChatSnapshot} and enqueue it.
+ */
+public class RelayWorker implements Runnable {
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final NarwhalIRCPlugin plugin;
+    private final RelayConfiguration config;
+    private final RelayQueue<ChatSnapshot> queue;
+    private final RelayStats stats;
+    private final AtomicLong pendingCoalesced = new AtomicLong();
+    /**
+     * Worker-confined rendering state
+     */
+    private final StringBuilder builder = new StringBuilder(256);
+    private ChatTemplate eventFormat;
+    private CompiledTemplate compiledEventFormat;
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    public RelayWorker(NarwhalIRCPlugin plugin, RelayConfiguration config) {
+        this.plugin = plugin;
+        this.config = config;
+        this.queue = new RelayQueue<ChatSnapshot>(config.capacity);
+        this.stats = new RelayStats(plugin.getMetrics());
+    }
+
+    public void start() {
+        running = true;
+        Thread thread = new Thread(this, "NarwhalIRC-Relay");
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stop the worker, giving it up to {@code timeout} milliseconds to deliver what is still queued
+     *
+     * @param timeout The time to wait for the worker to finish, in milliseconds
+     */
+    public void shutdown(long timeout) {
+        running = false;
+        Thread thread = this.thread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue a chat line to be relayed. Called from the server thread.
+     *
+     * @param snapshot The captured chat event
+     * @return Whether the line was queued
+     */
+    public boolean submit(ChatSnapshot snapshot) {
+        stats.getSubmitted().incrementAndGet();
+        boolean queued = queue.offer(snapshot);
+        if (!queued) {
+            switch (config.overflowPolicy) {
+                case DROP_OLDEST:
+                    do {
+                        if (queue.poll() != null) {
+                            stats.getDropped().incrementAndGet();
+                        }
+                    } while (!(queued = queue.offer(snapshot)));
+                    break;
+                case BLOCK:
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.blockTimeout);
+                    while (!(queued = queue.offer(snapshot)) && running && System.nanoTime() < deadline) {
+                        LockSupport.unpark(thread);
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                    }
+                    if (!queued) {
+                        stats.getDropped().incrementAndGet();
+                    }
+                    break;
+                case COALESCE:
+                    stats.getCoalesced().incrementAndGet();
+                    pendingCoalesced.incrementAndGet();
+                    break;
+            }
+        }
+        if (queued) {
+            LockSupport.unpark(thread);
+        }
+        return queued;
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            ChatSnapshot snapshot = queue.poll();
+            if (snapshot == null) {
+                flushCoalesced();
+                if (running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                continue;
+            }
+            stats.getQueue().record(System.nanoTime() - snapshot.getCreatedNanos());
+            try {
+                relay(snapshot);
+            } catch (Throwable t) {
+                plugin.getLogger().log(Level.SEVERE, "Error relaying chat message to IRC", t);
+            }
+        }
+    }
+
+    private void flushCoalesced() {
+        long skipped = pendingCoalesced.getAndSet(0);
+        if (skipped > 0) {
+            ChatArguments notice = new ChatArguments("[", skipped, " chat messages were not relayed]");
+            deliver(notice, PassedEvent.MESSAGE);
+        }
+    }
+
+    private void deliver(ChatArguments args, PassedEvent type) {
+        long start = System.nanoTime();
+        for (ChannelCommandSource chan : plugin.getRoutes().getReceivers(type)) {
+            chan.sendMessage(args);
+        }
+        stats.getDeliver().record(System.nanoTime() - start);
+    }
+
+    private void relay(ChatSnapshot snapshot) {
+        long formatNanos = 0, deliverNanos = 0;
+        String[] ircValues = null, plainValues = null;
+        Map<FormatClass, String[]> rendered = new HashMap<FormatClass, String[]>();
+        for (ChannelCommandSource chan : plugin.getRoutes().getReceivers(PassedEvent.MESSAGE)) {
+            long start = System.nanoTime();
+            FormatClass formatClass = chan.getServerToIrcClass();
+            String[] line = rendered.get(formatClass);
+            if (line == null) {
+                if (ircValues == null) {
+                    ircValues = new String[ChannelCommandSource.EVENT_SLOT + 1];
+                    plainValues = new String[ircValues.length];
+                    fillValues(snapshot, ircValues, plainValues);
+                }
+                line = render(chan.getCompiledServerToIrc(), formatClass.isStripColor(), ircValues, plainValues);
+                rendered.put(formatClass, line);
+            }
+            long formatted = System.nanoTime();
+            chan.sendRendered(line[0], line[1]);
+            formatNanos += formatted - start;
+            deliverNanos += System.nanoTime() - formatted;
+        }
+        stats.getFormat().record(formatNanos);
+        stats.getDeliver().record(deliverNanos);
+    }
+
+    /**
+     * Render the values of each server-to-irc slot for a chat event
+     */
+    private void fillValues(ChatSnapshot snapshot, String[] ircValues, String[] plainValues) {
+        ircValues[ChannelCommandSource.NAME_SLOT] = snapshot.getName().asString(IrcStyleHandler.ID);
+        plainValues[ChannelCommandSource.NAME_SLOT] = snapshot.getName().getPlainString();
+        ircValues[ChannelCommandSource.MESSAGE_SLOT] = snapshot.getMessage().asString(IrcStyleHandler.ID);
+        plainValues[ChannelCommandSource.MESSAGE_SLOT] = snapshot.getMessage().getPlainString();
+
+        if (snapshot.getFormat() != eventFormat) {
+            eventFormat = snapshot.getFormat();
+            compiledEventFormat = CompiledTemplate.compile(eventFormat, PlayerChatEvent.NAME, PlayerChatEvent.MESSAGE);
+        }
+        String[] eventValues = {ircValues[ChannelCommandSource.NAME_SLOT], ircValues[ChannelCommandSource.MESSAGE_SLOT]};
+        builder.setLength(0);
+        ircValues[ChannelCommandSource.EVENT_SLOT] = compiledEventFormat.renderIrc(builder, eventValues).toString();
+        eventValues[0] = plainValues[ChannelCommandSource.NAME_SLOT];
+        eventValues[1] = plainValues[ChannelCommandSource.MESSAGE_SLOT];
+        builder.setLength(0);
+        plainValues[ChannelCommandSource.EVENT_SLOT] = compiledEventFormat.renderPlain(builder, eventValues).toString();
+    }
+
+    /**
+     * Fill in a compiled server-to-irc template for a chat event
+     *
+     * @return The line rendered with IRC formatting, and the line as it should be sent
+     */
+    private String[] render(CompiledTemplate format, boolean stripColor, String[] ircValues, String[] plainValues) {
+        builder.setLength(0);
+        String ircLine = format.renderIrc(builder, ircValues).toString();
+        String outgoing = ircLine;
+        if (stripColor) {
+            builder.setLength(0);
+            outgoing = format.renderPlain(builder, plainValues).toString();
+        }
+        return new String[] {ircLine, outgoing};
+    }
+
+    public RelayStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return The number of chat lines waiting to be relayed
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Finds the command in a line of chat. Command prefixes and command aliases are compiled into
+ * tries, so a line is resolved in one pass over its characters: a line that is not a command is
+ * usually rejected at its first character, and a command line allocates only its {@link Match}.
+ * Lines may also address the bot by its nick instead of using a prefix, as in "NarwhalBot: players".
+ * Those are only commands when they name a known command, since people address the bot in conversation too.
+ * Aliases match case-insensitively. Immutable and safe for use from any thread.
+ *
+ * @param <T> The type of command
+ */
+public class CommandIndex<T> {
+    private final Node<T> prefixes = new Node<T>();
+    private final Node<T> aliases = new Node<T>();
+    private final boolean nickAddressing;
+    /**
+     * Which ASCII characters start a prefix, so most chat is rejected without walking the trie
+     */
+    private long prefixStartsLow, prefixStartsHigh;
+
+    private static class Node<T> {
+        private char[] keys = new char[0];
+        private Node<T>[] children = newArray(0);
+        private boolean terminal;
+        private T value;
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newArray(int length) {
+            return new Node[length];
+        }
+
+        public Node<T> get(char key) {
+            final char[] keys = this.keys;
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        public Node<T> getOrCreate(char key) {
+            Node<T> child = get(key);
+            if (child == null) {
+                child = new Node<T>();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = key;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    /**
+     * A command found in a line
+     *
+     * @param <T> The type of command
+     */
+    public static class Match<T> {
+        private final String line;
+        private final T command;
+        private final int nameStart, nameEnd, argumentsStart;
+
+        private Match(String line, T command, int nameStart, int nameEnd, int argumentsStart) {
+            this.line = line;
+            this.command = command;
+            this.nameStart = nameStart;
+            this.nameEnd = nameEnd;
+            this.argumentsStart = argumentsStart;
+        }
+
+        /**
+         * @return The command, or null if the line used a prefix but named no known command.
+         *      Lines addressed to the bot's nick always have a command.
+         */
+        public T getCommand() {
+            return command;
+        }
+
+        /**
+         * @return The command name as it was written
+         */
+        public String getName() {
+            return line.substring(nameStart, nameEnd);
+        }
+
+        /**
+         * @return Everything after the command name, without leading spaces
+         */
+        public String getArguments() {
+            return line.substring(argumentsStart);
+        }
+    }
+
+    /**
+     * @param prefixes The prefixes that mark a line as a command
+     * @param commands Commands by each of their aliases
+     * @param nickAddressing Whether a line starting with the bot's nick and a colon or comma is a command
+     */
+    public CommandIndex(Collection<String> prefixes, Map<String, T> commands, boolean nickAddressing) {
+        this.nickAddressing = nickAddressing;
+        for (String prefix : prefixes) {
+            if (prefix == null || prefix.isEmpty()) {
+                continue;
+            }
+            final char first = prefix.charAt(0);
+            if (first < 64) {
+                prefixStartsLow |= 1L << first;
+            } else if (first < 128) {
+                prefixStartsHigh |= 1L << (first - 64);
+            }
+            Node<T> node = this.prefixes;
+            for (int i = 0; i < prefix.length(); ++i) {
+                node = node.getOrCreate(prefix.charAt(i));
+            }
+            node.terminal = true;
+        }
+        for (Map.Entry<String, T> entry : commands.entrySet()) {
+            Node<T> node = this.aliases;
+            final String alias = entry.getKey();
+            for (int i = 0; i < alias.length(); ++i) {
+                node = node.getOrCreate(Character.toLowerCase(alias.charAt(i)));
+            }
+            node.terminal = true;
+            node.value = entry.getValue();
+        }
+    }
+
+    /**
+     * Find the command in a line
+     *
+     * @param line The line
+     * @param nick The bot's current nick, or null
+     * @return The command, or null if the line is not a command
+     */
+    public Match<T> match(String line, String nick) {
+        final int length = line.length();
+        if (length == 0) {
+            return null;
+        }
+        int start = mayStartPrefix(line.charAt(0)) ? prefixLength(line) : 0;
+        boolean addressed = false;
+        if (start == 0 && nickAddressing && nick != null) {
+            start = addressLength(line, nick);
+            addressed = true;
+        }
+        if (start == 0) {
+            return null;
+        }
+
+        Node<T> node = aliases;
+        int i = start;
+        for (; i < length; ++i) {
+            final char c = line.charAt(i);
+            if (c == ' ') {
+                break;
+            }
+            if (node != null) {
+                node = node.get(Character.toLowerCase(c));
+            }
+        }
+        if (i == start) {
+            return null;
+        }
+        final T command = node != null && node.terminal ? node.value : null;
+        if (command == null && addressed) {
+            return null; // Just talking to the bot
+        }
+        final int nameEnd = i;
+        while (i < length && line.charAt(i) == ' ') {
+            ++i;
+        }
+        return new Match<T>(line, command, start, nameEnd, i);
+    }
+
+    private boolean mayStartPrefix(char c) {
+        if (c < 64) {
+            return (prefixStartsLow & 1L << c) != 0;
+        } else if (c < 128) {
+            return (prefixStartsHigh & 1L << (c - 64)) != 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return The length of the longest prefix the line starts with, or 0 if it starts with none
+     */
+    private int prefixLength(String line) {
+        Node<T> node = prefixes;
+        int matched = 0;
+        for (int i = 0, length = line.length(); i < length; ++i) {
+            node = node.get(line.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.terminal) {
+                matched = i + 1;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @return The index of the command name in a line addressed to the nick, or 0 if it is not addressed to it
+     */
+    private static int addressLength(String line, String nick) {
+        final int length = line.length(), nickLength = nick.length();
+        if (length <= nickLength + 1 || nickLength == 0) {
+            return 0;
+        }
+        final char first = line.charAt(0), nickFirst = nick.charAt(0);
+        if (first < 128 && nickFirst < 128 && ((first ^ nickFirst) & ~0x20) != 0) {
+            return 0; // ASCII characters that differ by more than case
+        }
+        if (!line.regionMatches(true, 0, nick, 0, nickLength)) {
+            return 0;
+        }
+        final char separator = line.charAt(nickLength);
+        if (separator != ':' && separator != ',') {
+            return 0;
+        }
+        int i = nickLength + 1;
+        while (i < length && line.charAt(i) == ' ') {
+            ++i;
+        }
+        return i < length ? i : 0;
+    }
+}
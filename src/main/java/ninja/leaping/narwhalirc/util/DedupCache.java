@@ -0,0 +1,181 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers messages that should not be sent to a target again, for instance because the
+ * server is about to echo a message we have already relayed in another form.
+ * Entries are keyed on a 64-bit hash of the message and target, expire after a fixed time,
+ * and the oldest entries are evicted once the cache is full. Safe for use from any thread.
+ */
+public class DedupCache {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private final ConcurrentMap<Long, Long> expiries = new ConcurrentHashMap<Long, Long>();
+    private final Queue<Queued> insertionOrder = new ConcurrentLinkedQueue<Queued>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean trimming = new AtomicBoolean();
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * A key in the insertion order, with the expiry it was added with. If the key is added again
+     * before this is trimmed, the newer entry has a different expiry and is left alone.
+     */
+    private static class Queued {
+        private final Long key;
+        private final Long expiry;
+
+        private Queued(Long key, Long expiry) {
+            this.key = key;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * @param ttl Milliseconds an entry is kept for
+     * @param maxEntries The most entries held at once
+     */
+    public DedupCache(long ttl, int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Hash a message and its target with 64-bit FNV-1a
+     *
+     * @param message The message
+     * @param target The channel the message is sent to
+     * @return The hash
+     */
+    public static long hash(String message, String target) {
+        long hash = FNV_OFFSET;
+        for (int i = 0, length = message.length(); i < length; ++i) {
+            hash = (hash ^ message.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ 0xffff) * FNV_PRIME; // Separator, not a valid char
+        for (int i = 0, length = target.length(); i < length; ++i) {
+            hash = (hash ^ target.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Remember that a message should not be sent to a target
+     *
+     * @param message The message
+     * @param target The target
+     */
+    public void add(String message, String target) {
+        final long now = System.nanoTime();
+        final Long key = hash(message, target);
+        final Long expiry = now + ttlNanos;
+        expiries.put(key, expiry);
+        insertionOrder.add(new Queued(key, expiry));
+        queued.incrementAndGet();
+        trim(now);
+    }
+
+    /**
+     * Check whether a message is a duplicate for a target. A matching entry is consumed.
+     *
+     * @param message The message
+     * @param target The target
+     * @return true if the message should not be sent
+     */
+    public boolean isDuplicate(String message, String target) {
+        final Long expiry = expiries.remove(hash(message, target));
+        if (expiry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        if (expiry - System.nanoTime() < 0) {
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drop keys from the head of the insertion order while they have expired or the cache is over its bound.
+     * Only one thread trims at a time; others skip it, as the trimming thread covers their additions.
+     */
+    private void trim(long now) {
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Queued head;
+            while ((head = insertionOrder.peek()) != null) {
+                final boolean expired = head.expiry - now < 0;
+                if (!expired && queued.get() <= maxEntries) {
+                    break;
+                }
+                insertionOrder.poll();
+                queued.decrementAndGet();
+                if (expiries.remove(head.key, head.expiry)) {
+                    if (expired) {
+                        expirations.incrementAndGet();
+                    } else {
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    /**
+     * @return The number of live entries
+     */
+    public int size() {
+        return expiries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+}
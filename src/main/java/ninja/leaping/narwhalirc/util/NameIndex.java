@@ -0,0 +1,156 @@
+/**
+ * NarwhalIRC
+ * Copyright (C) 2013 zml2008
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ninja.leaping.narwhalirc.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Finds values by a case-insensitive prefix of any of their names, such as a player's name and
+ * display name. Names are kept sorted, so a lookup only visits names starting with the prefix.
+ * Safe for use from any thread, and reads never lock.
+ *
+ * @param <T> The type of value
+ */
+public class NameIndex<T> {
+    /**
+     * Separates a name from the value's id in keys, sorting before any character in a name
+     */
+    private static final char SEPARATOR = '\0';
+    private final ConcurrentSkipListMap<String, T> entries = new ConcurrentSkipListMap<String, T>();
+    private final ConcurrentMap<T, List<String>> keys = new ConcurrentHashMap<T, List<String>>();
+
+    private static class Candidate<T> {
+        private final T value;
+        private final int nameLength;
+
+        private Candidate(T value, int nameLength) {
+            this.value = value;
+            this.nameLength = nameLength;
+        }
+    }
+
+    private static final Comparator<Candidate<?>> SHORTEST_FIRST = new Comparator<Candidate<?>>() {
+        @Override
+        public int compare(Candidate<?> a, Candidate<?> b) {
+            return a.nameLength < b.nameLength ? -1 : a.nameLength == b.nameLength ? 0 : 1;
+        }
+    };
+
+    /**
+     * Add a value, replacing its names if it is already indexed
+     *
+     * @param value The value
+     * @param id A unique id for the value, such as a player's name
+     * @param names The names the value can be found by
+     */
+    public void add(T value, String id, String... names) {
+        remove(value);
+        final String suffix = SEPARATOR + id.toLowerCase();
+        List<String> added = new ArrayList<String>(names.length);
+        for (String name : names) {
+            if (name == null || name.isEmpty()) {
+                continue;
+            }
+            String key = name.toLowerCase() + suffix;
+            if (!added.contains(key)) {
+                added.add(key);
+                entries.put(key, value);
+            }
+        }
+        keys.put(value, added);
+    }
+
+    public void remove(T value) {
+        List<String> removed = keys.remove(value);
+        if (removed != null) {
+            for (String key : removed) {
+                entries.remove(key, value);
+            }
+        }
+    }
+
+    /**
+     * Remove every value not in a collection
+     *
+     * @param values The values to keep
+     */
+    public void retainAll(Collection<T> values) {
+        Set<T> keep = new HashSet<T>(values);
+        for (T value : keys.keySet()) {
+            if (!keep.contains(value)) {
+                remove(value);
+            }
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        keys.clear();
+    }
+
+    /**
+     * Find the values with a name starting with a query. Values with a name equal to the query are
+     * returned without any others. Otherwise values are ranked with the shortest completion first.
+     *
+     * @param query The start of a name
+     * @param limit The most values to return
+     * @return The matching values, best first
+     */
+    public List<T> match(String query, int limit) {
+        if (query.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        final String prefix = query.toLowerCase();
+        ConcurrentNavigableMap<String, T> matches = entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        Map<T, Candidate<T>> candidates = new LinkedHashMap<T, Candidate<T>>();
+        for (Map.Entry<String, T> entry : matches.entrySet()) {
+            final int nameLength = entry.getKey().indexOf(SEPARATOR);
+            if (nameLength != prefix.length() && !candidates.isEmpty()
+                    && candidates.values().iterator().next().nameLength == prefix.length()) {
+                break; // Exact names sort first, and there were some
+            }
+            Candidate<T> existing = candidates.get(entry.getValue());
+            if (existing == null || existing.nameLength > nameLength) {
+                candidates.put(entry.getValue(), new Candidate<T>(entry.getValue(), nameLength));
+            }
+        }
+        List<Candidate<T>> ranked = new ArrayList<Candidate<T>>(candidates.values());
+        Collections.sort(ranked, SHORTEST_FIRST);
+        List<T> result = new ArrayList<T>(Math.min(limit, ranked.size()));
+        for (int i = 0; i < ranked.size() && i < limit; ++i) {
+            result.add(ranked.get(i).value);
+        }
+        return result;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
@@ -21,29 +21,14 @@ import org.spongepowered.api.util.command.CommandSource;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility methods for NarwhalIRC
  */
 public class NarwhalIRCUtil {
 
-    public static boolean handleCommand(CommandSource source, String rawArgs, int styleHandlerId) {
-        return handleCommand(source, rawArgs, styleHandlerId, Spout.getEngine().getRootCommand());
-    }
-    public static boolean handleCommand(CommandSource source, String rawArgs, int styleHandlerId, CommandDispatcher root) {
-        String cmd;
-        ChatArguments arguments;
-        int spaceIndex = rawArgs.indexOf(" ");
-        if (spaceIndex == -1) {
-            cmd = rawArgs;
-            arguments = new ChatArguments();
-        } else {
-            cmd = rawArgs.substring(0, spaceIndex);
-            arguments = ChatArguments.fromString(rawArgs.substring(spaceIndex + 1), styleHandlerId);
-        }
-        return handleCommand(source, cmd, arguments, root);
-    }
-
     public static boolean handleCommand(CommandSource source, String cmdName, ChatArguments args) {
         return handleCommand(source, cmdName, args, Spout.getEngine().getRootCommand());
     }
@@ -59,6 +44,25 @@ public class NarwhalIRCUtil {
         }
     }
 
+    /**
+     * Run a command found by a {@link CommandIndex}
+     *
+     * @param source The source running the command
+     * @param match The command and its arguments
+     * @param styleHandlerId The style handler to parse the arguments with
+     * @return whether the command could be found.
+     */
+    public static boolean handleCommand(CommandSource source, CommandIndex.Match<Command> match, int styleHandlerId) {
+        Command cmd = match.getCommand();
+        if (cmd == null) {
+            source.sendMessage(ChatStyle.RED, "Unknown command: ", match.getName());
+            return false;
+        }
+        String rawArgs = match.getArguments();
+        cmd.process(source, match.getName(), rawArgs.isEmpty() ? new ChatArguments() : ChatArguments.fromString(rawArgs, styleHandlerId), false);
+        return true;
+    }
+
     public static <T, K, V> Map<K, V> getNestedMap(Map<T, Map<K, V>> collection, T key) {
         Map<K, V> map = collection.get(key);
         if (map == null) {
@@ -67,4 +71,47 @@ public class NarwhalIRCUtil {
         }
         return map;
     }
+
+    /**
+     * Count the bytes a string takes when encoded as UTF-8, without encoding it
+     *
+     * @param text The text to measure
+     * @return The encoded length in bytes
+     */
+    public static int utf8Length(CharSequence text) {
+        int bytes = 0;
+        for (int i = 0, length = text.length(); i < length; ++i) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                ++bytes;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                ++i;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Create a factory for daemon threads, so NarwhalIRC's threads never keep the server alive
+     *
+     * @param name The prefix for thread names
+     * @return The thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
 }